@@ -2,6 +2,7 @@ CREATE TABLE Caregivers (
     Username varchar(255),
     Salt BINARY(16),
     Hash BINARY(16),
+    Iterations int NOT NULL DEFAULT 10,
     PRIMARY KEY (Username)
 );
 
@@ -17,10 +18,18 @@ CREATE TABLE Vaccines (
     PRIMARY KEY (Name)
 );
 
+CREATE TABLE VaccineShards (
+    Name varchar(255) REFERENCES Vaccines,
+    Shard int,
+    Doses int NOT NULL,
+    PRIMARY KEY (Name, Shard)
+);
+
 CREATE TABLE Patients (
 	Username varchar(255),
     Salt BINARY(16),
     Hash BINARY(16),
+    Iterations int NOT NULL DEFAULT 10,
     PRIMARY KEY (Username)
 );
 
@@ -33,4 +42,19 @@ CREATE TABLE Appointments (
     FOREIGN KEY(cUsername) REFERENCES Caregivers(username),
     FOREIGN KEY(pUsername) REFERENCES Patients(username),
     FOREIGN KEY(vName) REFERENCES Vaccines(name)
-);
\ No newline at end of file
+);
+
+CREATE TABLE Waitlist (
+    wID int PRIMARY KEY IDENTITY(1,1),
+    pUsername varchar(255) REFERENCES Patients,
+    vName varchar(255) REFERENCES Vaccines,
+    Time date,
+    Priority int NOT NULL DEFAULT 0,
+    Created datetime2 NOT NULL DEFAULT SYSUTCDATETIME()
+);
+
+CREATE TABLE WriteJournalOffsets (
+    Journal varchar(255) PRIMARY KEY,
+    Generation bigint NOT NULL,
+    AppliedOffset bigint NOT NULL
+);
@@ -0,0 +1,9 @@
+-- show_appointments for patients: WHERE pUsername = ? ORDER BY apID
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointments_pUsername' AND object_id = OBJECT_ID('Appointments'))
+    CREATE INDEX IX_Appointments_pUsername ON Appointments (pUsername) INCLUDE (cUsername, vName, Time);
+GO
+-- show_appointments for caregivers: WHERE cUsername = ? ORDER BY apID, and cancel_day: WHERE Time = ? AND cUsername = ?
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointments_cUsername_Time' AND object_id = OBJECT_ID('Appointments'))
+    CREATE INDEX IX_Appointments_cUsername_Time ON Appointments (cUsername, Time) INCLUDE (pUsername, vName);
+GO
+-- Availabilities needs nothing new: its clustered primary key (Time, Username) already serves every lookup by Time
@@ -0,0 +1,6 @@
+-- databases created before password hashes recorded their iteration count
+IF COL_LENGTH('Caregivers', 'Iterations') IS NULL
+    ALTER TABLE Caregivers ADD Iterations int NOT NULL DEFAULT 10;
+GO
+IF COL_LENGTH('Patients', 'Iterations') IS NULL
+    ALTER TABLE Patients ADD Iterations int NOT NULL DEFAULT 10;
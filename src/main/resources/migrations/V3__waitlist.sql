@@ -0,0 +1,16 @@
+IF OBJECT_ID('Waitlist') IS NULL
+    CREATE TABLE Waitlist (
+        wID int PRIMARY KEY IDENTITY(1,1),
+        pUsername varchar(255) REFERENCES Patients,
+        vName varchar(255) REFERENCES Vaccines,
+        Time date,
+        Priority int NOT NULL DEFAULT 0,
+        Created datetime2 NOT NULL DEFAULT SYSUTCDATETIME()
+    );
+GO
+-- the matcher reads the queue in Priority, then arrival, order; waitlist checks for an existing entry per patient
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Waitlist_Priority' AND object_id = OBJECT_ID('Waitlist'))
+    CREATE INDEX IX_Waitlist_Priority ON Waitlist (Priority DESC, wID) INCLUDE (pUsername, vName, Time);
+GO
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Waitlist_pUsername' AND object_id = OBJECT_ID('Waitlist'))
+    CREATE INDEX IX_Waitlist_pUsername ON Waitlist (pUsername, vName);
@@ -0,0 +1,4 @@
+-- the archive job: WHERE Time < ? ORDER BY apID, then DELETE WHERE Time < ? AND apID <= ?
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointments_Time' AND object_id = OBJECT_ID('Appointments'))
+    CREATE INDEX IX_Appointments_Time ON Appointments (Time) INCLUDE (cUsername, pUsername, vName);
+GO
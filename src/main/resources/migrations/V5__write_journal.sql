@@ -0,0 +1,8 @@
+-- how far each local write journal has been applied, updated in the same transaction as the writes
+IF OBJECT_ID('WriteJournalOffsets') IS NULL
+    CREATE TABLE WriteJournalOffsets (
+        Journal varchar(255) PRIMARY KEY,
+        Generation bigint NOT NULL,
+        AppliedOffset bigint NOT NULL
+    );
+GO
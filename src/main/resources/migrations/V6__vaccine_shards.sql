@@ -0,0 +1,15 @@
+-- dose stock split over several rows per vaccine, so bookings of one vaccine stop queueing on a single row lock
+IF OBJECT_ID('VaccineShards') IS NULL
+    CREATE TABLE VaccineShards (
+        Name varchar(255) REFERENCES Vaccines,
+        Shard int,
+        Doses int NOT NULL,
+        PRIMARY KEY (Name, Shard)
+    );
+GO
+-- move the existing stock into shard 0; Vaccines.Doses stays at 0 from here on
+INSERT INTO VaccineShards (Name, Shard, Doses)
+SELECT Name, 0, Doses FROM Vaccines v
+WHERE Doses <> 0 AND NOT EXISTS (SELECT 1 FROM VaccineShards s WHERE s.Name = v.Name);
+UPDATE Vaccines SET Doses = 0 WHERE Doses <> 0;
+GO
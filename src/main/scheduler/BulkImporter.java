@@ -0,0 +1,362 @@
+package scheduler;
+
+import scheduler.cache.AvailabilityCache;
+import scheduler.cache.UsernameFilter;
+import scheduler.db.ConnectionManager;
+import scheduler.service.CredentialService;
+import scheduler.service.DoseShards;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Streams CSV files of patients, caregivers, vaccines or availabilities into the database.
+ *
+ * The file is read in chunks. For each chunk, the usernames are checked against the database with one
+ * set-based IN query per chunk, passwords are hashed in parallel on all cores and the rows are written
+ * in one JDBC batch inside one transaction. Rows that are malformed, duplicated or already in the
+ * database are rejected and reported instead of failing the import. Names and usernames are compared
+ * case-insensitively, like the database's default collation does.
+ *
+ * File formats, one row per line, an optional header line is skipped:
+ *   patients, caregivers:  username,password
+ *   vaccines:              name,doses      (doses are added if the vaccine already exists)
+ *   availabilities:        date,username
+ */
+public class BulkImporter {
+
+    public static final String[] TYPES = new String[] {"patients", "caregivers", "vaccines", "availabilities"};
+
+    private static final int chunkSize = 1000;
+    private static final int maxReportedRejections = 10;
+
+    public ImportReport importFile(String type, Path file) throws IOException, SQLException {
+        ImportReport report = new ImportReport(type, file);
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<Row> chunk = new ArrayList<>(chunkSize);
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || (lineNumber == 1 && isHeader(line))) {
+                    continue;
+                }
+                chunk.add(new Row(lineNumber, line.split(",", -1)));
+                if (chunk.size() == chunkSize) {
+                    importChunk(type, chunk, report);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                importChunk(type, chunk, report);
+            }
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void importChunk(String type, List<Row> chunk, ImportReport report) throws SQLException {
+        report.read += chunk.size();
+        if (type.equals("patients")) {
+            importUsers("Patients", chunk, report);
+        } else if (type.equals("caregivers")) {
+            importUsers("Caregivers", chunk, report);
+        } else if (type.equals("vaccines")) {
+            importVaccines(chunk, report);
+        } else if (type.equals("availabilities")) {
+            importAvailabilities(chunk, report);
+        } else {
+            throw new IllegalArgumentException("Unknown import type: " + type);
+        }
+    }
+
+    private void importUsers(String table, List<Row> chunk, ImportReport report) throws SQLException {
+        List<Row> valid = new ArrayList<>();
+        for (Row row : chunk) {
+            if (row.fields.length != 2 || row.field(0).isEmpty()) {
+                report.reject(row, "expected username,password");
+            } else if (!Scheduler.checkPassword(row.field(1))) {
+                report.reject(row, "password is not strong enough");
+            } else if (!report.seen.add(table + ":" + key(row.field(0)))) {
+                report.reject(row, "duplicate username in file");
+            } else {
+                valid.add(row);
+            }
+        }
+
+        Set<String> existing = findExisting("SELECT Username FROM " + table + " WHERE Username IN ", keys(valid, 0));
+        List<Row> fresh = new ArrayList<>();
+        for (Row row : valid) {
+            if (existing.contains(key(row.field(0)))) {
+                report.reject(row, "username taken");
+            } else {
+                fresh.add(row);
+            }
+        }
+
+        // PBKDF2 dominates the cost of an account, spread it over every core
+        CredentialService credentials = CredentialService.getInstance();
+        fresh.parallelStream().forEach(row -> {
+            row.salt = credentials.newSalt();
+            row.hash = credentials.hash(row.field(1), row.salt);
+        });
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String addUser = "INSERT INTO " + table + " (Username, Salt, Hash, Iterations) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addUser)) {
+            con.setAutoCommit(false);
+            for (Row row : fresh) {
+                statement.setString(1, row.field(0));
+                statement.setBytes(2, row.salt);
+                statement.setBytes(3, row.hash);
+                statement.setInt(4, credentials.getIterations());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            con.commit();
+            report.imported += fresh.size();
+            UsernameFilter filter = table.equals("Patients") ? UsernameFilter.getPatients() : UsernameFilter.getCaregivers();
+            for (Row row : fresh) {
+                filter.add(row.field(0));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void importVaccines(List<Row> chunk, ImportReport report) throws SQLException {
+        List<Row> valid = new ArrayList<>();
+        for (Row row : chunk) {
+            if (row.fields.length != 2 || row.field(0).isEmpty()) {
+                report.reject(row, "expected name,doses");
+                continue;
+            }
+            try {
+                if (Integer.parseInt(row.field(1)) < 0) {
+                    report.reject(row, "doses cannot be negative");
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                report.reject(row, "doses is not a number");
+                continue;
+            }
+            if (!report.seen.add("Vaccines:" + key(row.field(0)))) {
+                report.reject(row, "duplicate vaccine in file");
+                continue;
+            }
+            valid.add(row);
+        }
+
+        Set<String> existing = findExisting("SELECT Name FROM Vaccines WHERE Name IN ", keys(valid, 0));
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement insert = con.prepareStatement("INSERT INTO Vaccines (Name, Doses) VALUES (?, 0)");
+             PreparedStatement stock = con.prepareStatement(DoseShards.addToShard)) {
+            con.setAutoCommit(false);
+            for (Row row : valid) {
+                int doses = Integer.parseInt(row.field(1));
+                if (existing.contains(key(row.field(0)))) {
+                    DoseShards.addDelta(stock, row.field(0), doses);
+                } else {
+                    insert.setString(1, row.field(0));
+                    insert.addBatch();
+                    DoseShards.addStock(stock, row.field(0), doses);
+                }
+            }
+            // the vaccines before their shards, which reference them
+            insert.executeBatch();
+            stock.executeBatch();
+            con.commit();
+            report.imported += valid.size();
+        } finally {
+            cm.closeConnection();
+        }
+        AvailabilityCache.getInstance().invalidateStock();
+    }
+
+    private void importAvailabilities(List<Row> chunk, ImportReport report) throws SQLException {
+        List<Row> valid = new ArrayList<>();
+        for (Row row : chunk) {
+            if (row.fields.length != 2 || row.field(1).isEmpty()) {
+                report.reject(row, "expected date,username");
+                continue;
+            }
+            try {
+                row.date = Date.valueOf(row.field(0));
+            } catch (IllegalArgumentException e) {
+                report.reject(row, "invalid date");
+                continue;
+            }
+            valid.add(row);
+        }
+
+        // rows for unknown caregivers would fail the foreign key and with it the whole batch
+        Set<String> caregivers = findExisting("SELECT Username FROM Caregivers WHERE Username IN ", keys(valid, 1));
+        List<Row> known = new ArrayList<>();
+        for (Row row : valid) {
+            if (caregivers.contains(key(row.field(1)))) {
+                known.add(row);
+            } else {
+                report.reject(row, "unknown caregiver");
+            }
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        String addAvailability = "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)";
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+            con.setAutoCommit(false);
+            for (Row row : known) {
+                statement.setDate(1, row.date);
+                statement.setString(2, row.field(1));
+                statement.setDate(3, row.date);
+                statement.setString(4, row.field(1));
+                statement.addBatch();
+            }
+            int[] counts = statement.executeBatch();
+            con.commit();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                    report.imported++;
+                    AvailabilityCache.getInstance().invalidateDate(known.get(i).date);
+                } else {
+                    report.reject(known.get(i), "availability already uploaded");
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Which of the keys already exist, as key()s, using one IN (...) query for the whole chunk
+    private static Set<String> findExisting(String query, Collection<String> keys) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        if (keys.isEmpty()) {
+            return existing;
+        }
+        StringBuilder sql = new StringBuilder(query).append("(");
+        for (int i = 0; i < keys.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (String key : keys) {
+                statement.setString(i++, key);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                existing.add(key(resultSet.getString(1)));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return existing;
+    }
+
+    private static Set<String> keys(List<Row> rows, int field) {
+        Set<String> keys = new HashSet<>();
+        for (Row row : rows) {
+            keys.add(row.field(field));
+        }
+        return keys;
+    }
+
+    // The form names are compared in, the database matches them case-insensitively
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isHeader(String line) {
+        String first = line.split(",", -1)[0].trim().toLowerCase();
+        return first.equals("username") || first.equals("name") || first.equals("date");
+    }
+
+    private static class Row {
+        private final int lineNumber;
+        private final String[] fields;
+        private byte[] salt;
+        private byte[] hash;
+        private Date date;
+
+        private Row(int lineNumber, String[] fields) {
+            this.lineNumber = lineNumber;
+            this.fields = fields;
+        }
+
+        private String field(int i) {
+            return fields[i].trim();
+        }
+    }
+
+    public static class ImportReport {
+        private final String type;
+        private final Path file;
+        private final Set<String> seen = new HashSet<>();
+        private final List<String> rejections = new ArrayList<>();
+        private long read = 0;
+        private long imported = 0;
+        private long rejected = 0;
+        private long elapsedNanos = 0;
+
+        private ImportReport(String type, Path file) {
+            this.type = type;
+            this.file = file;
+        }
+
+        private void reject(Row row, String reason) {
+            rejected++;
+            if (rejections.size() < maxReportedRejections) {
+                rejections.add("line " + row.lineNumber + ": " + reason);
+            }
+        }
+
+        public long getRead() {
+            return read;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public List<String> getRejections() {
+            return rejections;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : read / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s): read %d, imported %d, rejected %d in %d ms (%.1f rows/sec)",
+                    file, type, read, imported, rejected, elapsedNanos / 1000000, getRowsPerSecond());
+        }
+    }
+}
@@ -1,104 +1,300 @@
 package scheduler;
 
+import scheduler.archive.AppointmentArchive;
+import scheduler.archive.ArchiveJob;
+import scheduler.cache.AvailabilityCache;
+import scheduler.cache.UsernameFilter;
 import scheduler.db.ConnectionManager;
+import scheduler.db.MigrationRunner;
+import scheduler.db.SqlTracer;
 import scheduler.model.Appointment;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
 import scheduler.model.Vaccine;
+import scheduler.service.AssignmentStrategy;
+import scheduler.service.CancellationService;
+import scheduler.service.CaregiverLoad;
+import scheduler.service.CredentialService;
+import scheduler.service.InventoryService;
+import scheduler.service.ReservationEngine;
+import scheduler.service.WaitlistMatcher;
+import scheduler.service.WriteJournal;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
+    // objects to keep track of the user logged in to this session
     // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    //       since only one user can be logged-in per session at a time
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    // where this session's responses go: stdout for the console, the socket for server clients
+    private final PrintStream out;
 
     private static final String[] specialChars = new String[] {"!", "@", "#", "?"};
     private static final int passLength = 8;
+    // about two years of daily availability per upload
+    private static final int maxUploadDates = 750;
+    // longest range search_availability_range summarizes, in days
+    private static final int maxRangeDays = 366;
+    // caregivers per search_caregiver_schedule page when no limit is given
+    private static final int searchPageSize = Util.envInt("SearchPageSize", 100);
+
+    // alphabetical until main reads the AssignmentStrategy variable
+    private static volatile ReservationEngine reservationEngine =
+            new ReservationEngine(new AssignmentStrategy.Alphabetical());
+    private static final CancellationService cancellationService = new CancellationService();
+    private static final WaitlistMatcher waitlistMatcher = WaitlistMatcher.getInstance();
+    private static final AvailabilityCache availabilityCache = AvailabilityCache.getInstance();
+    private static final WriteJournal writeJournal = WriteJournal.getInstance();
+
+    public Scheduler(PrintStream out) {
+        this.out = out;
+    }
 
     public static void main(String[] args) throws SQLException {
 
+        // open the pooled connections before the first command needs one
+        ConnectionManager.warmUp();
+
+        // bring the schema up to date before any command touches it, MigrateOnStartup=0 skips this
+        if (Util.envInt("MigrateOnStartup", 1) != 0) {
+            try {
+                MigrationRunner.migrate();
+            } catch (SQLException e) {
+                System.out.println("Could not migrate the database schema");
+                e.printStackTrace();
+            }
+        }
+
+        // load the username filters so create_patient and create_caregiver can skip the database for free names
+        try {
+            UsernameFilter.getPatients().build();
+            UsernameFilter.getCaregivers().build();
+        } catch (SQLException e) {
+            System.out.println("Could not build the username filters, names are checked in the database");
+            e.printStackTrace();
+        }
+
+        // AssignmentStrategy picks who gets booked: alphabetical (default), least_loaded, round_robin or random
+        reservationEngine = new ReservationEngine(AssignmentStrategy.fromEnv("AssignmentStrategy"));
+
+        // count every caregiver's appointments before the first booking changes them
+        try {
+            CaregiverLoad.getInstance().load();
+        } catch (SQLException e) {
+            System.out.println("Could not count the caregivers' appointments, they are counted on first use");
+            e.printStackTrace();
+        }
+
+        // apply what the write journal still holds from a previous run before anything reads those tables
+        if (WriteJournal.getInstance().isEnabled()) {
+            try {
+                int replayed = WriteJournal.getInstance().recover();
+                if (replayed > 0) {
+                    System.out.println("Applied " + replayed + " journaled writes from the previous run");
+                }
+            } catch (SQLException e) {
+                System.out.println("Could not replay the write journal, it is retried in the background");
+                e.printStackTrace();
+            }
+        }
+
+        // scheduler --script <file> [--tx <n>] replays a command file without prompts
+        if (args.length > 0 && args[0].equals("--script")) {
+            try {
+                ScriptRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            } finally {
+                WaitlistMatcher.getInstance().shutdown();
+                WriteJournal.getInstance().shutdown();
+                InventoryService.getInstance().shutdown();
+                ConnectionManager.shutdown();
+            }
+            return;
+        }
+
+        // scheduler --archive [cutoff] moves appointments before the cutoff into the history file,
+        // by default everything older than ArchiveRetentionDays
+        if (args.length > 0 && args[0].equals("--archive")) {
+            try {
+                Date cutoff = args.length > 1
+                        ? Date.valueOf(args[1])
+                        : Date.valueOf(LocalDate.now().minusDays(Util.envInt("ArchiveRetentionDays", 90)));
+                int archived = new ArchiveJob(ArchiveJob.defaultArchive()).run(cutoff);
+                System.out.println("Archived " + archived + " appointments before " + cutoff);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Please enter a valid date!");
+            } catch (SQLException | IOException e) {
+                System.out.println("Archiving failed, appointments not yet archived stay in the database");
+                e.printStackTrace();
+            } finally {
+                WaitlistMatcher.getInstance().shutdown();
+                WriteJournal.getInstance().shutdown();
+                InventoryService.getInstance().shutdown();
+                ConnectionManager.shutdown();
+            }
+            return;
+        }
+
+        // scheduler --server [port] serves many clients from this one process
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : SchedulerServer.DEFAULT_PORT;
+            try {
+                new SchedulerServer(port).serve();
+            } catch (IOException e) {
+                System.out.println("Could not start the server on port " + port);
+                e.printStackTrace();
+            } finally {
+                WaitlistMatcher.getInstance().shutdown();
+                WriteJournal.getInstance().shutdown();
+                InventoryService.getInstance().shutdown();
+                ConnectionManager.shutdown();
+            }
+            return;
+        }
+
+        Scheduler scheduler = new Scheduler(System.out);
+        scheduler.printGreeting();
+        scheduler.run(new BufferedReader(new InputStreamReader(System.in)));
+        // write out buffered dose changes while the pool is still open
+        WaitlistMatcher.getInstance().shutdown();
+        WriteJournal.getInstance().shutdown();
+        InventoryService.getInstance().shutdown();
+        ConnectionManager.shutdown();
+    }
+
+    public void printGreeting() {
         // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
-
-        // read input from user
-        BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+        out.println();
+        out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        out.println("*** Please enter one of the following commands ***");
+        out.println("> create_patient <username> <password>");
+        out.println("> create_caregiver <username> <password>");
+        out.println("> login_patient <username> <password>");
+        out.println("> login_caregiver <username> <password>");
+        out.println("> search_caregiver_schedule <date> [<limit> [<after_username>]]");
+        out.println("> search_availability_range <start> <end> [vaccine]");
+        out.println("> reserve <date> <vaccine>");
+        out.println("> reserve_earliest <vaccine> [from_date]");
+        out.println("> waitlist <date|any> <vaccine>");
+        out.println("> upload_availability <date>");
+        out.println("> upload_availability_range <start> <end> [weekdays]");
+        out.println("> upload_availability_recurring <start> <end> <interval_weeks> <weekdays>");
+        out.println("> import <patients|caregivers|vaccines|availabilities> <file> [<file> ...]");
+        out.println("> cancel <appointment_id>");
+        out.println("> cancel_day <date>");
+        out.println("> add_doses <vaccine> <number>");
+        out.println("> show_appointments [--history]");
+        out.println("> logout");
+        out.println("> stats [reset]");
+        out.println("> quit");
+        out.println();
+    }
+
+    // Read and execute commands until quit or the end of the input
+    public void run(BufferedReader r) {
         while (true) {
-            System.out.print("> ");
+            out.print("> ");
+            out.flush();
             String response = "";
             try {
                 response = r.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
-            }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
+                out.println("Please try again!");
                 continue;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            if (response == null || !execute(response)) {
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static boolean checkPassword(String pass)
+    // Execute one command line, returns false once the user asked to quit
+    public boolean execute(String response) {
+        return execute(parseCommand(response));
+    }
+
+    // Execute an already parsed command, returns false once the user asked to quit
+    public boolean execute(String[] tokens) {
+        // check if input exists
+        if (tokens.length == 0) {
+            out.println("Please try again!");
+            return true;
+        }
+        // determine which operation to perform
+        String operation = tokens[0];
+        if (operation.equals("create_patient")) {
+            createPatient(tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(tokens);
+        } else if (operation.equals("search_availability_range")) {
+            searchAvailabilityRange(tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(tokens);
+        } else if (operation.equals("reserve_earliest")) {
+            reserveEarliest(tokens);
+        } else if (operation.equals("waitlist")) {
+            waitlist(tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(tokens);
+        } else if (operation.equals("upload_availability_range")) {
+            uploadAvailabilityRange(tokens);
+        } else if (operation.equals("upload_availability_recurring")) {
+            uploadAvailabilityRecurring(tokens);
+        } else if (operation.equals("import")) {
+            importFiles(tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(tokens);
+        } else if (operation.equals("cancel_day")) {
+            cancelDay(tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(tokens);
+        } else if (operation.equals("logout")) {
+            logout(tokens);
+        } else if (operation.equals("stats")) {
+            stats(tokens);
+        } else if (operation.equals("quit")) {
+            out.println("Bye!");
+            return false;
+        } else {
+            out.println("Invalid operation name!");
+        }
+        return true;
+    }
+
+    // split the user input by spaces
+    public static String[] parseCommand(String response) {
+        return response.split(" ");
+    }
+
+    public static boolean checkPassword(String pass)
     {
         int upper = 0, lower = 0, number = 0, special = 0;
 
@@ -148,9 +344,9 @@ public class Scheduler {
         return true;
     }
 
-    private static void createPatient(String[] tokens) {
+    private void createPatient(String[] tokens) {
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            out.println("Failed to create user.");
             return;
         }
 
@@ -159,31 +355,32 @@ public class Scheduler {
 
         if (!checkPassword(password))
         {
-            System.out.println("Password is not strong enough.");
+            out.println("Password is not strong enough.");
             return;
         }
 
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            out.println("Username taken, try again!");
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        CredentialService credentials = CredentialService.getInstance();
+        byte[] salt = credentials.newSalt();
+        byte[] hash = credentials.hash(password, salt);
         try {
-            Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
+            Patient patient = new Patient.PatientBuilder(username, salt, hash, credentials.getIterations()).build();
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            out.println("Failed to create user.");
             e.printStackTrace();
         }
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private void createCaregiver(String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            out.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
@@ -191,77 +388,60 @@ public class Scheduler {
 
         if (!checkPassword(password))
         {
-            System.out.println("Password is not strong enough.");
+            out.println("Password is not strong enough.");
             return;
         }
 
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            out.println("Username taken, try again!");
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        CredentialService credentials = CredentialService.getInstance();
+        byte[] salt = credentials.newSalt();
+        byte[] hash = credentials.hash(password, salt);
         // create the caregiver
         try {
-            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
+            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash, credentials.getIterations()).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            out.println("Failed to create user.");
             e.printStackTrace();
         }
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
+    private boolean usernameExistsCaregiver(String username) {
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            // a name the filter has never seen is free without a round trip
+            return UsernameFilter.getCaregivers().exists(username);
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
-    private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
+    private boolean usernameExistsPatient(String username) {
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            // a name the filter has never seen is free without a round trip
+            return UsernameFilter.getPatients().exists(username);
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    private void loginPatient(String[] tokens) {
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            out.println("User already logged in.");
             return;
         }
 
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -271,28 +451,28 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            out.println("Logged in as: " + username);
             currentPatient = patient;
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private void loginCaregiver(String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            out.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -302,311 +482,698 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            out.println("Logged in as: " + username);
             currentCaregiver = caregiver;
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
+    // search_caregiver_schedule <date> [<limit> [<after_username>]]
+    private void searchCaregiverSchedule(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null)
         {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
+            return;
         }
 
-        if (tokens.length != 2) {
-            System.out.println("Login failed.");
+        if (tokens.length < 2 || tokens.length > 4) {
+            out.println("Please try again!");
             return;
         }
 
         String date = tokens[1];
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getAvailabilities = "SELECT Username, Name, Doses FROM Availabilities LEFT OUTER JOIN Vaccines ON 1 = 1 WHERE Time = ? ORDER BY Username";
         try {
             Date d = Date.valueOf(date);
-            PreparedStatement statement = con.prepareStatement(getAvailabilities);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
-
-            System.out.println("Available caregivers and vaccines:");
-            while (resultSet.next()) {
-                System.out.print(resultSet.getString("username") + " ");
-                System.out.print(resultSet.getString("Name") + " ");
-                System.out.println(resultSet.getInt("Doses"));
+            int limit = tokens.length > 2 ? Integer.parseInt(tokens[2]) : searchPageSize;
+            String after = tokens.length > 3 ? tokens[3] : null;
+            if (limit <= 0) {
+                out.println("Please try again!");
+                return;
+            }
+            // one row past the page tells whether there is a next one
+            List<String> caregivers = availabilityCache.getCaregivers(d, after, limit + 1);
+
+            // caregivers and vaccines are independent lists, print them separately instead of their cross product
+            StringBuilder response = new StringBuilder();
+            response.append("Available caregivers:").append(System.lineSeparator());
+            for (int i = 0; i < Math.min(limit, caregivers.size()); i++) {
+                response.append(caregivers.get(i)).append(System.lineSeparator());
+            }
+            // the stock is the same on every page, only print it with the first one
+            if (after == null) {
+                response.append("Available vaccines:").append(System.lineSeparator());
+                for (Map.Entry<String, Integer> vaccine : availabilityCache.getVaccineStock().entrySet()) {
+                    response.append(vaccine.getKey()).append(" ").append(vaccine.getValue()).append(System.lineSeparator());
+                }
             }
-            System.out.println();
+            if (caregivers.size() > limit) {
+                response.append("More caregivers: search_caregiver_schedule ").append(date).append(" ").append(limit)
+                        .append(" ").append(caregivers.get(limit - 1)).append(System.lineSeparator());
+            }
+            out.println(response);
         } catch (Exception e) {
-            System.out.println("Please try again!");
-        } finally {
-            cm.closeConnection();
+            out.println("Please try again!");
         }
     }
 
-    private static String getCaregiver(Connection con, ConnectionManager cm, String date)
-    {
-        String getAvailabilities = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username";
-        String caregiver = "";
+    private void searchAvailabilityRange(String[] tokens) {
+        // search_availability_range <start> <end> [vaccine]
+        if (currentCaregiver == null && currentPatient == null)
+        {
+            out.println("Please login first!");
+            return;
+        }
+        if (tokens.length != 3 && tokens.length != 4) {
+            out.println("Please try again!");
+            return;
+        }
+        LocalDate start;
+        LocalDate end;
         try {
-            Date d = Date.valueOf(date);
-            PreparedStatement statement = con.prepareStatement(getAvailabilities);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
+            start = LocalDate.parse(tokens[1]);
+            end = LocalDate.parse(tokens[2]);
+        } catch (DateTimeParseException e) {
+            out.println("Please enter a valid date range!");
+            return;
+        }
+        if (end.isBefore(start) || start.plusDays(maxRangeDays).isBefore(end)) {
+            out.println("Please enter a valid date range!");
+            return;
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con;
+        try {
+            con = cm.createConnection();
+        } catch (SQLException e) {
+            out.println("Please try again!");
+            return;
+        }
 
+        // one grouped range scan over the (Time, Username) key instead of a query per date
+        String countAvailabilities = "SELECT Time, COUNT(*) AS Caregivers FROM Availabilities " +
+                "WHERE Time >= ? AND Time <= ? GROUP BY Time";
+        Map<LocalDate, Integer> caregivers = new HashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(countAvailabilities)) {
+            statement.setDate(1, Date.valueOf(start));
+            statement.setDate(2, Date.valueOf(end));
+            ResultSet resultSet = statement.executeQuery();
             while (resultSet.next()) {
-                caregiver = resultSet.getString("Username");
-                return caregiver;
+                caregivers.put(resultSet.getDate("Time").toLocalDate(), resultSet.getInt("Caregivers"));
             }
-        } catch (Exception e) {
-            System.out.println("Please try again!");
-            return null;
+        } catch (SQLException e) {
+            out.println("Please try again!");
+            return;
         } finally {
             cm.closeConnection();
         }
 
-        System.out.println("No Caregiver is available!");
-        return null;
-    }
-
-    public static void deleteCaregiver(Connection con, ConnectionManager cm, Date date, String caregiver)
-    {
-        String deleteAvailability = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
-
+        int doses;
         try {
-            PreparedStatement statement = con.prepareStatement(deleteAvailability);
-            statement.setDate(1, date);
-            statement.setString(2, caregiver);
-            statement.executeQuery();
-        } catch (Exception e) {
-            System.out.println("Please try again!");
-        } finally {
-            cm.closeConnection();
+            Map<String, Integer> stock = availabilityCache.getVaccineStock();
+            if (tokens.length == 4) {
+                if (!stock.containsKey(tokens[3])) {
+                    out.println("Please try again!");
+                    return;
+                }
+                doses = stock.get(tokens[3]);
+            } else {
+                doses = 0;
+                for (int d : stock.values()) {
+                    doses += d;
+                }
+            }
+        } catch (SQLException e) {
+            out.println("Please try again!");
+            return;
+        }
+
+        // every day of the range, a day is bookable up to its caregivers or the doses left, whichever runs out first
+        StringBuilder response = new StringBuilder();
+        response.append("Date Caregivers Doses").append(System.lineSeparator());
+        for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+            int available = caregivers.getOrDefault(day, 0);
+            response.append(day).append(" ").append(available).append(" ")
+                    .append(Math.max(0, Math.min(available, doses))).append(System.lineSeparator());
         }
+        out.print(response);
     }
 
-    private static void reserve(String[] tokens)
+    private void reserve(String[] tokens)
     {
         if (currentPatient == null && currentCaregiver == null)
         {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
             return;
         }
 
         if (currentPatient == null)
         {
-            System.out.println("Please login as a patient!");
+            out.println("Please login as a patient!");
+            return;
+        }
+
+        if (tokens.length != 3)
+        {
+            out.println("Please try again!");
             return;
         }
 
         String date = tokens[1];
         String vaccine = tokens[2];
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getAvailabilities = "SELECT Username, Doses FROM Availabilities, Vaccines WHERE Time = ? AND Name = ? ORDER BY Username DESC";
-        String deleteAvailability = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
-        String createAppointment = "INSERT INTO Appointments VALUES(?, ?, ?, ?) " +
-                                    "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ?";
-        String getID = "SELECT apID FROM Appointments WHERE Time = ? AND cUsername = ?";
-
-        String caregiver = "";
-        int doses = 0;
         try {
             Date d = Date.valueOf(date);
-            PreparedStatement statement = con.prepareStatement(getAvailabilities);
-            statement.setDate(1, d);
-            statement.setString(2, vaccine);
-            ResultSet resultSet = statement.executeQuery();
+            // claims a caregiver, takes a dose and books the appointment in one transaction
+            ReservationEngine.Reservation reservation = book(d, vaccine, false);
 
-            while (resultSet.next()) {
-                caregiver = resultSet.getString("Username");
-                doses = resultSet.getInt("Doses");
+            if (reservation.getStatus() == ReservationEngine.Reservation.Status.NO_CAREGIVER)
+            {
+                availabilityCache.invalidateDate(d);
+                out.println("No Caregiver is available!");
+                return;
             }
 
-            if (caregiver.isEmpty())
+            if (reservation.getStatus() == ReservationEngine.Reservation.Status.NO_DOSES)
             {
-                System.out.println("No Caregiver is available!");
+                availabilityCache.invalidateStock();
+                out.println("Not enough available doses");
                 return;
             }
 
-            if (doses < 1)
+            availabilityCache.removeCaregiver(d, reservation.getCaregiver());
+            availabilityCache.adjustStock(vaccine, -1);
+            out.println("Appointment ID: " + reservation.getApID() + ", Caregiver username: " + reservation.getCaregiver());
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            out.println("Please try again!");
+        }
+    }
+
+    private void reserveEarliest(String[] tokens)
+    {
+        // reserve_earliest <vaccine> [from_date]
+        if (currentPatient == null && currentCaregiver == null)
+        {
+            out.println("Please login first!");
+            return;
+        }
+
+        if (currentPatient == null)
+        {
+            out.println("Please login as a patient!");
+            return;
+        }
+
+        if (tokens.length != 2 && tokens.length != 3)
+        {
+            out.println("Please try again!");
+            return;
+        }
+
+        String vaccine = tokens[1];
+
+        try {
+            Date from = tokens.length == 3 ? Date.valueOf(tokens[2]) : Date.valueOf(LocalDate.now());
+            // finds and claims the first free caregiver on or after from in the same single transaction
+            ReservationEngine.Reservation reservation = book(from, vaccine, true);
+
+            if (reservation.getStatus() == ReservationEngine.Reservation.Status.NO_CAREGIVER)
             {
-                System.out.println("Not enough available doses");
+                out.println("No Caregiver is available!");
                 return;
             }
 
-            PreparedStatement dstatement = con.prepareStatement(deleteAvailability);
-            dstatement.setDate(1, d);
-            dstatement.setString(2, caregiver);
-            dstatement.execute();
-
-            PreparedStatement astatement = con.prepareStatement(createAppointment);
-            astatement.setString(1, caregiver);
-            astatement.setString(2, currentPatient.getUsername());
-            astatement.setString(3, vaccine);
-            astatement.setDate(4, d);
-            astatement.setString(5, vaccine);
-            astatement.execute();
-
-            PreparedStatement istatement = con.prepareStatement(getID);
-            istatement.setDate(1, d);
-            istatement.setString(2, caregiver);
-            ResultSet iresultSet = istatement.executeQuery();
-            int apID = -1;
-
-            while (iresultSet.next()) {
-                apID = iresultSet.getInt("apID");
+            if (reservation.getStatus() == ReservationEngine.Reservation.Status.NO_DOSES)
+            {
+                availabilityCache.invalidateStock();
+                out.println("Not enough available doses");
+                return;
             }
 
-            System.out.println("Appointment ID: " + apID + ", Caregiver username: " + caregiver);
+            availabilityCache.removeCaregiver(reservation.getDate(), reservation.getCaregiver());
+            availabilityCache.adjustStock(vaccine, -1);
+            out.println("Appointment ID: " + reservation.getApID() + ", Caregiver username: " + reservation.getCaregiver()
+                    + ", Date: " + reservation.getDate());
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            out.println("Please try again!");
+        }
+    }
+
+    private void waitlist(String[] tokens)
+    {
+        // waitlist <date|any> <vaccine>
+        if (currentPatient == null && currentCaregiver == null)
+        {
+            out.println("Please login first!");
+            return;
+        }
+
+        if (currentPatient == null)
+        {
+            out.println("Please login as a patient!");
+            return;
+        }
 
+        if (tokens.length != 3)
+        {
+            out.println("Please try again!");
+            return;
+        }
+
+        try {
+            Date d = tokens[1].equals("any") ? null : Date.valueOf(tokens[1]);
+            // the matcher only books from today on, an entry for a past date would wait forever
+            if (d != null && d.toLocalDate().isBefore(LocalDate.now())) {
+                out.println("Please enter a date from today on!");
+                return;
+            }
+            if (!waitlistMatcher.enqueue(currentPatient.getUsername(), tokens[2], d)) {
+                out.println("Already on the waitlist!");
+                return;
+            }
+            // there may be capacity already, e.g. doses added after the failed reserve
+            waitlistMatcher.fire();
+            out.println("Added to the waitlist! You will be booked as soon as a caregiver and a dose are free, "
+                    + "check show_appointments.");
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
             e.printStackTrace();
-            System.out.println("Please try again!");
-        } finally {
-            cm.closeConnection();
+            out.println("Please try again!");
         }
+    }
 
+    private ReservationEngine.Reservation book(Date d, String vaccine, boolean earliest) throws SQLException {
+        String patient = currentPatient.getUsername();
+        ReservationEngine.Reservation reservation = earliest
+                ? reservationEngine.reserveEarliest(d, vaccine, patient)
+                : reservationEngine.reserve(d, vaccine, patient);
 
+        // doses added moments ago may still be waiting in the inventory service, push them out and retry once
+        if (reservation.getStatus() == ReservationEngine.Reservation.Status.NO_DOSES
+                && InventoryService.getInstance().getPending(vaccine) > 0
+                && flushed(InventoryService.getInstance()::flush))
+        {
+            reservation = earliest
+                    ? reservationEngine.reserveEarliest(d, vaccine, patient)
+                    : reservationEngine.reserve(d, vaccine, patient);
+        }
+        // and availability uploaded moments ago may still be in the write journal
+        if (reservation.getStatus() == ReservationEngine.Reservation.Status.NO_CAREGIVER
+                && writeJournal.hasPending()
+                && flushed(writeJournal::flush))
+        {
+            reservation = earliest
+                    ? reservationEngine.reserveEarliest(d, vaccine, patient)
+                    : reservationEngine.reserve(d, vaccine, patient);
+        }
+        return reservation;
+    }
+
+    // Run a flush on its own connection. In a script it can time out on locks the script's open
+    // transaction holds; the booking then keeps its first answer and the background flush retries
+    private static boolean flushed(Flush flush) {
+        try {
+            flush.run();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
 
-        //query with vaccine and date to get caregivers
-        //delete caregiver from availabilities
-        //create appointment
+    private interface Flush {
+        int run() throws SQLException;
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private void uploadAvailability(String[] tokens) {
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            out.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (writeJournal.isEnabled()) {
+                writeJournal.appendAvailability(d, currentCaregiver.getUsername());
+            } else {
+                currentCaregiver.uploadAvailability(d);
+            }
+            waitlistMatcher.fire();
+            out.println("Availability uploaded!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            out.println("Error occurred when uploading availability");
             e.printStackTrace();
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
+    private void uploadAvailabilityRange(String[] tokens) {
+        // upload_availability_range <start> <end> [weekdays]
+        if (currentCaregiver == null) {
+            out.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 3 && tokens.length != 4) {
+            out.println("Please try again!");
+            return;
+        }
+        String weekdays = tokens.length == 4 ? tokens[3] : "mon,tue,wed,thu,fri,sat,sun";
+        uploadAvailabilities(tokens[1], tokens[2], weekdays, 1);
     }
 
-    private static void addDoses(String[] tokens) {
+    private void uploadAvailabilityRecurring(String[] tokens) {
+        // upload_availability_recurring <start> <end> <interval_weeks> <weekdays>
+        if (currentCaregiver == null) {
+            out.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 5) {
+            out.println("Please try again!");
+            return;
+        }
+        int intervalWeeks;
+        try {
+            intervalWeeks = Integer.parseInt(tokens[3]);
+        } catch (NumberFormatException e) {
+            out.println("Please try again!");
+            return;
+        }
+        uploadAvailabilities(tokens[1], tokens[2], tokens[4], intervalWeeks);
+    }
+
+    private void uploadAvailabilities(String start, String end, String weekdays, int intervalWeeks) {
+        List<Date> dates;
+        try {
+            dates = Util.expandDates(LocalDate.parse(start), LocalDate.parse(end),
+                    Util.parseWeekdays(weekdays), intervalWeeks);
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            out.println("Please enter a valid date range!");
+            return;
+        }
+        if (dates.size() > maxUploadDates) {
+            out.println("Please upload at most " + maxUploadDates + " dates at a time!");
+            return;
+        }
+        try {
+            long begin = System.nanoTime();
+            int inserted = dates.isEmpty() ? 0 : currentCaregiver.uploadAvailability(dates);
+            if (inserted > 0) {
+                waitlistMatcher.fire();
+            }
+            long elapsed = (System.nanoTime() - begin) / 1000000;
+            out.println("Availability uploaded! Inserted: " + inserted + ", skipped: " + (dates.size() - inserted)
+                    + ", took " + elapsed + " ms");
+        } catch (SQLException e) {
+            out.println("Error occurred when uploading availability");
+            e.printStackTrace();
+        }
+    }
+
+    private void importFiles(String[] tokens) {
+        // import <patients|caregivers|vaccines|availabilities> <file> [<file> ...]
+        if (currentCaregiver == null) {
+            out.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length < 3 || !Arrays.asList(BulkImporter.TYPES).contains(tokens[1])) {
+            out.println("Please try again!");
+            return;
+        }
+        BulkImporter importer = new BulkImporter();
+        for (int i = 2; i < tokens.length; i++) {
+            try {
+                BulkImporter.ImportReport report = importer.importFile(tokens[1], Paths.get(tokens[i]));
+                out.println(report);
+                for (String rejection : report.getRejections()) {
+                    out.println("  rejected " + rejection);
+                }
+                if (tokens[1].equals("vaccines") || tokens[1].equals("availabilities")) {
+                    waitlistMatcher.fire();
+                }
+            } catch (IOException e) {
+                out.println("Could not read " + tokens[i]);
+            } catch (SQLException e) {
+                out.println("Error occurred when importing " + tokens[i]);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void cancel(String[] tokens) {
+        // cancel <appointment_id>
+        if (currentPatient == null && currentCaregiver == null)
+        {
+            out.println("Please login first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            out.println("Please try again!");
+            return;
+        }
+        String username = currentPatient != null ? currentPatient.getUsername() : currentCaregiver.getUsername();
+        try {
+            int apID = Integer.parseInt(tokens[1]);
+            // deletes the appointment, restores the availability and returns the dose in one transaction
+            CancellationService.Cancellation cancellation = currentPatient != null
+                    ? cancellationService.cancelAsPatient(apID, username)
+                    : cancellationService.cancelAsCaregiver(apID, username);
+            if (cancellation == null) {
+                out.println("No appointment " + apID + " found for " + username + "!");
+                return;
+            }
+            availabilityCache.addCaregiver(cancellation.getDate(), cancellation.getCaregiver());
+            availabilityCache.adjustStock(cancellation.getVaccine(), 1);
+            // the freed slot goes to the waitlist first
+            waitlistMatcher.fire();
+            out.println("Appointment " + apID + " cancelled!");
+        } catch (NumberFormatException e) {
+            out.println("Please try again!");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            out.println("Please try again!");
+        }
+    }
+
+    private void cancelDay(String[] tokens) {
+        // cancel_day <date>
+        if (currentCaregiver == null) {
+            out.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            out.println("Please try again!");
+            return;
+        }
+        try {
+            Date d = Date.valueOf(tokens[1]);
+            List<CancellationService.Cancellation> affected =
+                    cancellationService.cancelDay(d, currentCaregiver.getUsername());
+            // availability and stock both changed in bulk, reload them rather than patch every entry
+            availabilityCache.invalidateDate(d);
+            availabilityCache.invalidateStock();
+            // doses of appointments that could not be moved are free again
+            waitlistMatcher.fire();
+
+            int moved = 0;
+            StringBuilder response = new StringBuilder();
+            for (CancellationService.Cancellation cancellation : affected) {
+                response.append(cancellation.getApID()).append(" ").append(cancellation.getPatient()).append(" ");
+                if (cancellation.isMoved()) {
+                    moved++;
+                    response.append("moved to ").append(cancellation.getCaregiver());
+                } else {
+                    response.append("cancelled");
+                }
+                response.append(System.lineSeparator());
+            }
+            out.print(response);
+            out.println("Availability removed! Moved: " + moved + ", cancelled: " + (affected.size() - moved));
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            out.println("Please try again!");
+        }
+    }
+
+    private void addDoses(String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            out.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        int doses;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
-            e.printStackTrace();
+            doses = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            out.println("Please try again!");
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
+        if (doses < 0) {
+            out.println("Please try again!");
+            return;
+        }
+        try {
+            Vaccine vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the
+            //          Vaccines table
+            if (vaccine == null) {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
                 vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
+            } else if (doses > 0) {
+                // if the vaccine is not null, meaning that the vaccine already exists in our table
                 vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
             }
+        } catch (SQLException e) {
+            out.println("Error occurred when adding doses");
+            e.printStackTrace();
+            return;
         }
-        System.out.println("Doses updated!");
+        waitlistMatcher.fire();
+        out.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens) {
+    private void showAppointments(String[] tokens) {
+        if (tokens.length > 2 || (tokens.length == 2 && !tokens[1].equals("--history"))) {
+            out.println("Please try again!");
+            return;
+        }
         String getAppointments = "";
         String currentUser = "";
+        String username = "";
 
         if (currentPatient != null)
         {
-            getAppointments = "SELECT apID, vName, Time, cUsername FROM Appointments WHERE pUsername = '" + currentPatient.getUsername() + "' ORDER BY apID";
+            getAppointments = "SELECT apID, vName, Time, cUsername FROM Appointments WHERE pUsername = ? ORDER BY apID";
             currentUser = "cUsername";
+            username = currentPatient.getUsername();
         }
         else if (currentCaregiver != null)
         {
-            getAppointments = "SELECT apID, vName, Time, pUsername FROM Appointments WHERE cUsername = '" + currentCaregiver.getUsername() + "' ORDER BY apID";
+            getAppointments = "SELECT apID, vName, Time, pUsername FROM Appointments WHERE cUsername = ? ORDER BY apID";
             currentUser = "pUsername";
+            username = currentCaregiver.getUsername();
         }
         else
         {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        // archived appointments are all older than the live ones, so they come first
+        if (tokens.length == 2) {
+            try {
+                for (AppointmentArchive.Row row : ArchiveJob.defaultArchive().find(username, currentCaregiver != null)) {
+                    String other = currentCaregiver != null ? row.getPatient() : row.getCaregiver();
+                    out.println(row.getApID() + " " + row.getVaccine() + " " + row.getTime() + " " + other);
+                }
+            } catch (IOException e) {
+                out.println("Please try again!");
+                return;
+            }
+        }
 
+        ConnectionManager cm = new ConnectionManager();
+        Connection con;
         try {
-            PreparedStatement statement = con.prepareStatement(getAppointments);
+            con = cm.createConnection();
+        } catch (SQLException e) {
+            out.println("Please try again!");
+            return;
+        }
+
+        try (PreparedStatement statement = con.prepareStatement(getAppointments)) {
+            // bind the username instead of splicing it in, so every user shares one cached statement
+            statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
 
             while (resultSet.next()) {
-                System.out.println(resultSet.getInt("apID") + " " + resultSet.getString("vName") + " " + resultSet.getString("Time") + " " + resultSet.getString(currentUser));
+                out.println(resultSet.getInt("apID") + " " + resultSet.getString("vName") + " " + resultSet.getString("Time") + " " + resultSet.getString(currentUser));
             }
         } catch (Exception e) {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
         } finally {
             cm.closeConnection();
         }
     }
 
-    private static void logout(String[] tokens)
+    private void logout(String[] tokens)
     {
         if (!(currentCaregiver == null || currentPatient == null))
         {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
         }
         else if (currentCaregiver == null && currentPatient == null)
         {
-            System.out.println("No user logged in!");
+            out.println("No user logged in!");
         }
         else
         {
             currentCaregiver = null;
             currentPatient = null;
-            System.out.println("Successfully logged out!");
+            out.println("Successfully logged out!");
+        }
+    }
+
+    // Live pool, cache and per-statement numbers; "stats reset" clears the per-statement ones
+    private void stats(String[] tokens) {
+        if (tokens.length > 2 || (tokens.length == 2 && !tokens[1].equals("reset"))) {
+            out.println("Please try again!");
+            return;
+        }
+        SqlTracer tracer = ConnectionManager.getTracer();
+        if (tokens.length == 2) {
+            if (tracer != null) {
+                tracer.reset();
+            }
+            out.println("Statement stats cleared!");
+            return;
+        }
+        out.println(ConnectionManager.getPoolStats());
+        out.println(availabilityCache);
+        out.println(UsernameFilter.getPatients());
+        out.println(UsernameFilter.getCaregivers());
+        if (tracer == null) {
+            out.println("SQL tracing is turned off");
+            return;
+        }
+        List<SqlTracer.TemplateStats> templates = tracer.getTemplates();
+        templates.sort(Comparator.comparingDouble(SqlTracer.TemplateStats::getTotalMillis).reversed());
+        out.println(String.format("%8s %6s %8s %10s %10s %10s %10s  %s",
+                "calls", "errors", "rows", "total(ms)", "p50(ms)", "p99(ms)", "max(ms)", "sql"));
+        for (SqlTracer.TemplateStats t : templates) {
+            String sql = t.getSql().length() > 80 ? t.getSql().substring(0, 77) + "..." : t.getSql();
+            out.println(String.format("%8d %6d %8d %10.1f %10.2f %10.2f %10.2f  %s",
+                    t.getCalls(), t.getErrors(), t.getRows(), t.getTotalMillis(),
+                    t.getPercentileMillis(50), t.getPercentileMillis(99), t.getMaxMillis(), sql));
         }
     }
 }
@@ -0,0 +1,88 @@
+package scheduler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves many scheduler sessions from one process.
+ *
+ * Each client connects to a loopback socket and speaks the same line-based command grammar as the
+ * console: it gets the greeting, a "> " prompt per command and the same responses. Every client has
+ * its own {@link Scheduler} session, so logins are per connection, and every session runs on its own
+ * virtual thread when the JVM has them (Java 21+), falling back to a platform thread otherwise.
+ * Sessions only share the connection pool, so a slow query in one session never holds up another.
+ */
+public class SchedulerServer {
+
+    public static final int DEFAULT_PORT = 7414;
+
+    private final int port;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+
+    public SchedulerServer(int port) {
+        this.port = port;
+    }
+
+    public void serve() throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+            System.out.println("Scheduler server listening on " + server.getLocalSocketAddress());
+            while (!server.isClosed()) {
+                Socket client = server.accept();
+                sessions.execute(() -> runSession(client));
+            }
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    private void runSession(Socket client) {
+        activeSessions.incrementAndGet();
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8")) {
+            Scheduler session = new Scheduler(out);
+            session.printGreeting();
+            session.run(in);
+        } catch (IOException e) {
+            // the client went away, nothing left to answer
+        } finally {
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    // Virtual threads are only in Java 21+. vaccine-scheduler-java-main.iml builds on JDK 11 with the jre11
+    // driver and vaccine-scheduler-java.iml on the project JDK with the jre16 one, so neither may call
+    // the factory directly; look it up reflectively and say which executor won
+    private static ExecutorService newSessionExecutor() {
+        try {
+            ExecutorService executor =
+                    (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Sessions run on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Sessions run on platform threads, virtual threads need Java 21 (running "
+                    + System.getProperty("java.version") + ")");
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "scheduler-session-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package scheduler;
+
+import scheduler.cache.AvailabilityCache;
+import scheduler.db.ConnectionManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a file of scheduler commands without prompts.
+ *
+ * The whole file is parsed up front and run by one {@link Scheduler} session on one connection bound
+ * to this thread, committing every txSize commands. Each command runs under its own savepoint, so a
+ * command that fails is rolled back on its own and the rest of its transaction still commits. If the
+ * transaction itself is lost (e.g. chosen as a deadlock victim) every command in it is reported as
+ * failed. Dose changes are flushed by the inventory service and the write journal on connections of
+ * their own, so they commit whether or not the script's transaction does, and rolling it back does
+ * not undo them.
+ *
+ * Script format: one command per line, exactly as typed at the prompt. Blank lines and lines starting
+ * with # are skipped.
+ */
+public class ScriptRunner {
+
+    // how the scheduler answers when a command did not go through
+    private static final String[] failureResponses = new String[] {
+            "Please try again", "Please login", "Please enter", "Please upload", "Login failed",
+            "Failed to", "Username taken", "User already", "No user logged in", "No Caregiver",
+            "Not enough", "No appointment", "Password is not", "Error occurred", "Could not",
+            "Invalid operation"
+    };
+
+    private final int txSize;
+    private final boolean quiet;
+
+    public ScriptRunner(int txSize, boolean quiet) {
+        if (txSize <= 0) {
+            throw new IllegalArgumentException("Transaction size must be positive!");
+        }
+        this.txSize = txSize;
+        this.quiet = quiet;
+    }
+
+    // usage: --script <file> [--tx <commands per transaction>] [--quiet]
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: --script <file> [--tx <n>] [--quiet]");
+            return;
+        }
+        int txSize = 1;
+        boolean quiet = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--tx") && i + 1 < args.length) {
+                txSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--quiet")) {
+                quiet = true;
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        try {
+            List<Command> commands = parse(Paths.get(args[0]));
+            ScriptReport report = new ScriptRunner(txSize, quiet).run(commands);
+            System.out.print(report);
+        } catch (IOException e) {
+            System.out.println("Could not read " + args[0]);
+        } catch (SQLException e) {
+            System.out.println("Could not get a database connection for the script");
+            e.printStackTrace();
+        }
+    }
+
+    public static List<Command> parse(Path file) throws IOException {
+        List<Command> commands = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            commands.add(new Command(i + 1, line, Scheduler.parseCommand(line)));
+        }
+        return commands;
+    }
+
+    public ScriptReport run(List<Command> commands) throws SQLException {
+        ScriptReport report = new ScriptReport(txSize);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Scheduler session;
+        try {
+            session = new Scheduler(new PrintStream(buffer, true, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        long start = System.nanoTime();
+        Connection con = ConnectionManager.bindConnection();
+        try {
+            con.setAutoCommit(false);
+            List<Command> group = new ArrayList<>();
+            for (Command command : commands) {
+                buffer.reset();
+                Savepoint savepoint = con.setSavepoint();
+                boolean keepGoing = true;
+                String failure = null;
+                try {
+                    keepGoing = session.execute(command.tokens);
+                } catch (RuntimeException e) {
+                    failure = e.toString();
+                }
+                String response = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+                if (!quiet) {
+                    System.out.print(response);
+                }
+                if (failure == null) {
+                    failure = failureOf(response);
+                }
+                report.commands++;
+                if (failure != null) {
+                    report.failures.add(new Failure(command, failure));
+                    if (!rollbackTo(con, savepoint)) {
+                        abandon(con, group, command, report);
+                        group.clear();
+                        continue;
+                    }
+                } else {
+                    group.add(command);
+                }
+                if (report.commands % txSize == 0 || !keepGoing) {
+                    commit(con, group, report);
+                    group.clear();
+                }
+                if (!keepGoing) {
+                    break;
+                }
+            }
+            commit(con, group, report);
+        } finally {
+            ConnectionManager.unbindConnection();
+            con.close();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    // The first line of a failed command's response, null if the command went through
+    public static String failureOf(String response) {
+        for (String line : response.split("\\R")) {
+            for (String failure : failureResponses) {
+                if (line.startsWith(failure)) {
+                    return line;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean rollbackTo(Connection con, Savepoint savepoint) {
+        try {
+            con.rollback(savepoint);
+            // the cache may have picked up writes that are gone now
+            AvailabilityCache.getInstance().clear();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void commit(Connection con, List<Command> group, ScriptReport report) {
+        try {
+            con.commit();
+            if (!group.isEmpty()) {
+                report.transactions++;
+            }
+        } catch (SQLException e) {
+            abandon(con, group, null, report);
+        }
+    }
+
+    // The transaction is gone: roll it back and report every command that was in it
+    private void abandon(Connection con, List<Command> group, Command cause, ScriptReport report) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            // nothing left to undo
+        }
+        AvailabilityCache.getInstance().clear();
+        String reason = cause == null ? "rolled back, the transaction could not be committed"
+                : "rolled back with line " + cause.lineNumber;
+        for (Command command : group) {
+            report.failures.add(new Failure(command, reason));
+        }
+        report.rolledBack++;
+    }
+
+    public static class Command {
+        private final int lineNumber;
+        private final String text;
+        private final String[] tokens;
+
+        private Command(int lineNumber, String text, String[] tokens) {
+            this.lineNumber = lineNumber;
+            this.text = text;
+            this.tokens = tokens;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    public static class Failure {
+        private final Command command;
+        private final String message;
+
+        private Failure(Command command, String message) {
+            this.command = command;
+            this.message = message;
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    public static class ScriptReport {
+        private final int txSize;
+        private int commands = 0;
+        private int transactions = 0;
+        private int rolledBack = 0;
+        private long elapsedNanos = 0;
+        private final List<Failure> failures = new ArrayList<>();
+
+        private ScriptReport(int txSize) {
+            this.txSize = txSize;
+        }
+
+        public int getCommands() {
+            return commands;
+        }
+
+        public List<Failure> getFailures() {
+            return failures;
+        }
+
+        public double getCommandsPerSecond() {
+            return elapsedNanos == 0 ? 0 : commands / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Ran %d commands in %.2fs (%.1f commands/sec), %d failed%n",
+                    commands, elapsedNanos / 1e9, getCommandsPerSecond(), failures.size()));
+            sb.append(String.format("%d transactions of up to %d commands committed, %d rolled back%n",
+                    transactions, txSize, rolledBack));
+            for (Failure failure : failures) {
+                sb.append(String.format(" line %d: %s -> %s%n",
+                        failure.command.lineNumber, failure.command.text, failure.message));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package scheduler.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only, compressed, columnar file of archived appointments.
+ *
+ * The file is a sequence of blocks, one per archival batch. A block stores its rows column by
+ * column: usernames and vaccine names as per-block dictionaries plus varint indexes into them, apIDs
+ * as varint deltas and dates as zigzag varint deltas of the epoch day, all deflated together. The
+ * block header carries the row count, the date range, the payload lengths and a CRC of the payload.
+ *
+ * Blocks are only ever appended and forced to disk before the rows are deleted from the database,
+ * so a crash can at worst leave a torn block at the end, which readers skip and the next append
+ * overwrites. Readers memory-map the file and inflate one block at a time; the dictionaries are
+ * compressed with the rest of the payload, so every block is inflated, but the columns of a block
+ * whose dictionary does not hold the user are never decoded.
+ */
+public class AppointmentArchive {
+
+    private static final int MAGIC = 0x41505031; // "APP1"
+    private static final int HEADER_BYTES = 7 * Integer.BYTES;
+
+    private final Path file;
+
+    public AppointmentArchive(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Append the rows, ordered by apID, as one block and force it to disk
+    public synchronized void append(List<Row> rows) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        Map<String, Integer> caregivers = dictionary(rows, 0);
+        Map<String, Integer> patients = dictionary(rows, 1);
+        Map<String, Integer> vaccines = dictionary(rows, 2);
+        writeDictionary(raw, caregivers);
+        writeDictionary(raw, patients);
+        writeDictionary(raw, vaccines);
+
+        int minDay = Integer.MAX_VALUE;
+        int maxDay = Integer.MIN_VALUE;
+        int previousID = 0;
+        for (Row row : rows) {
+            writeVarint(raw, row.apID - previousID);
+            previousID = row.apID;
+        }
+        int previousDay = 0;
+        for (Row row : rows) {
+            int day = (int) row.time.toLocalDate().toEpochDay();
+            writeVarint(raw, zigzag(day - previousDay));
+            previousDay = day;
+            minDay = Math.min(minDay, day);
+            maxDay = Math.max(maxDay, day);
+        }
+        for (Row row : rows) {
+            writeVarint(raw, caregivers.get(row.caregiver));
+        }
+        for (Row row : rows) {
+            writeVarint(raw, patients.get(row.patient));
+        }
+        for (Row row : rows) {
+            writeVarint(raw, vaccines.get(row.vaccine));
+        }
+
+        byte[] payload = deflate(raw.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer block = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        block.putInt(MAGIC).putInt(rows.size()).putInt(minDay).putInt(maxDay)
+                .putInt(raw.size()).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        block.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // start right after the last intact block, dropping a torn one left by a crash
+            long end = validLength(channel);
+            channel.truncate(end);
+            channel.position(end);
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+            channel.force(true);
+        }
+    }
+
+    // Archived appointments of the patient, or of the caregiver, in apID order
+    public List<Row> find(String username, boolean caregiver) throws IOException {
+        List<Row> found = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return found;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return found;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (true) {
+                Block block = nextBlock(mapped);
+                if (block == null) {
+                    break;
+                }
+                block.find(username, caregiver, found);
+            }
+        }
+        // a crash between appending a block and deleting its rows archives them again on the next run
+        Map<Integer, Row> unique = new LinkedHashMap<>();
+        for (Row row : found) {
+            unique.put(row.apID, row);
+        }
+        List<Row> rows = new ArrayList<>(unique.values());
+        rows.sort((a, b) -> Integer.compare(a.apID, b.apID));
+        return rows;
+    }
+
+    private static long validLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        while (nextBlock(mapped) != null) {
+            // just walking to the end of the last intact block
+        }
+        return mapped.position();
+    }
+
+    // The block at the buffer's position, or null at the end or at a torn block
+    private static Block nextBlock(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        if (buffer.getInt() != MAGIC) {
+            buffer.position(start);
+            return null;
+        }
+        int rowCount = buffer.getInt();
+        buffer.getInt(); // first day, for range scans
+        buffer.getInt(); // last day
+        int rawLength = buffer.getInt();
+        int compressedLength = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (compressedLength < 0 || buffer.remaining() < compressedLength) {
+            buffer.position(start);
+            return null;
+        }
+        byte[] payload = new byte[compressedLength];
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return null;
+        }
+        return new Block(rowCount, rawLength, payload);
+    }
+
+    private static Map<String, Integer> dictionary(List<Row> rows, int column) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Row row : rows) {
+            String value = column == 0 ? row.caregiver : column == 1 ? row.patient : row.vaccine;
+            dictionary.putIfAbsent(value, dictionary.size());
+        }
+        return dictionary;
+    }
+
+    private static void writeDictionary(ByteArrayOutputStream out, Map<String, Integer> dictionary) {
+        writeVarint(out, dictionary.size());
+        for (String value : dictionary.keySet()) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static String[] readDictionary(ByteBuffer in) {
+        String[] dictionary = new String[readVarint(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            byte[] bytes = new byte[readVarint(in)];
+            in.get(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return dictionary;
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Block {
+        private final int rowCount;
+        private final int rawLength;
+        private final byte[] payload;
+
+        private Block(int rowCount, int rawLength, byte[] payload) {
+            this.rowCount = rowCount;
+            this.rawLength = rawLength;
+            this.payload = payload;
+        }
+
+        private void find(String username, boolean caregiver, List<Row> found) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(inflate());
+            String[] caregivers = readDictionary(in);
+            String[] patients = readDictionary(in);
+            String[] vaccines = readDictionary(in);
+
+            // usernames compare case-insensitively, like the database's default collation
+            Map<Integer, Boolean> matches = new HashMap<>();
+            String[] searched = caregiver ? caregivers : patients;
+            for (int i = 0; i < searched.length; i++) {
+                if (searched[i].equalsIgnoreCase(username)) {
+                    matches.put(i, Boolean.TRUE);
+                }
+            }
+            if (matches.isEmpty()) {
+                return;
+            }
+
+            int[] apIDs = new int[rowCount];
+            int apID = 0;
+            for (int i = 0; i < rowCount; i++) {
+                apID += readVarint(in);
+                apIDs[i] = apID;
+            }
+            int[] days = new int[rowCount];
+            int day = 0;
+            for (int i = 0; i < rowCount; i++) {
+                day += unzigzag(readVarint(in));
+                days[i] = day;
+            }
+            int[] caregiverColumn = readColumn(in);
+            int[] patientColumn = readColumn(in);
+            int[] vaccineColumn = readColumn(in);
+
+            int[] searchedColumn = caregiver ? caregiverColumn : patientColumn;
+            for (int i = 0; i < rowCount; i++) {
+                if (matches.containsKey(searchedColumn[i])) {
+                    found.add(new Row(apIDs[i], caregivers[caregiverColumn[i]], patients[patientColumn[i]],
+                            vaccines[vaccineColumn[i]], Date.valueOf(LocalDate.ofEpochDay(days[i]))));
+                }
+            }
+        }
+
+        private int[] readColumn(ByteBuffer in) {
+            int[] column = new int[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                column[i] = readVarint(in);
+            }
+            return column;
+        }
+
+        private byte[] inflate() throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(payload);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    n += inflater.inflate(raw, n, rawLength - n);
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt archive block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    public static class Row {
+        private final int apID;
+        private final String caregiver;
+        private final String patient;
+        private final String vaccine;
+        private final Date time;
+
+        public Row(int apID, String caregiver, String patient, String vaccine, Date time) {
+            this.apID = apID;
+            this.caregiver = caregiver;
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.time = time;
+        }
+
+        public int getApID() {
+            return apID;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package scheduler.archive;
+
+import scheduler.cache.AvailabilityCache;
+import scheduler.db.ConnectionManager;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves appointments dated before a cutoff out of the Appointments table into the history file.
+ *
+ * Works through the old appointments in chunks, in apID order. Each chunk is read under an update
+ * lock, appended to the archive and forced to disk, and only then deleted in the same transaction,
+ * so a row is never gone from both places. Past availabilities carry no history and are deleted
+ * outright at the end.
+ */
+public class ArchiveJob {
+
+    private static final String archiveFile = System.getenv("ArchiveFile") != null
+            ? System.getenv("ArchiveFile")
+            : "appointments.archive";
+    private static final int chunkSize = 10000;
+
+    private static final String selectChunk =
+            "SELECT TOP (?) apID, cUsername, pUsername, vName, Time FROM Appointments WITH (UPDLOCK, HOLDLOCK) " +
+            "WHERE Time < ? ORDER BY apID";
+    private static final String deleteChunk = "DELETE FROM Appointments WHERE Time < ? AND apID <= ?";
+    private static final String deleteAvailabilities = "DELETE FROM Availabilities WHERE Time < ?";
+
+    private final AppointmentArchive archive;
+
+    public ArchiveJob(AppointmentArchive archive) {
+        this.archive = archive;
+    }
+
+    // The history file named by the ArchiveFile setting
+    public static AppointmentArchive defaultArchive() {
+        return new AppointmentArchive(Paths.get(archiveFile));
+    }
+
+    // Archive every appointment before the cutoff, returns how many were moved
+    public int run(Date cutoff) throws SQLException, IOException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        int archived = 0;
+        try {
+            con.setAutoCommit(false);
+            try {
+                while (true) {
+                    int moved = archiveChunk(con, cutoff);
+                    con.commit();
+                    if (moved == 0) {
+                        break;
+                    }
+                    archived += moved;
+                    System.out.println("Archived " + archived + " appointments");
+                }
+                try (PreparedStatement statement = con.prepareStatement(deleteAvailabilities)) {
+                    statement.setDate(1, cutoff);
+                    statement.executeUpdate();
+                }
+                con.commit();
+            } catch (SQLException | IOException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        AvailabilityCache.getInstance().clear();
+        return archived;
+    }
+
+    private int archiveChunk(Connection con, Date cutoff) throws SQLException, IOException {
+        List<AppointmentArchive.Row> rows = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(selectChunk)) {
+            statement.setInt(1, chunkSize);
+            statement.setDate(2, cutoff);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                rows.add(new AppointmentArchive.Row(resultSet.getInt("apID"), resultSet.getString("cUsername"),
+                        resultSet.getString("pUsername"), resultSet.getString("vName"), resultSet.getDate("Time")));
+            }
+        }
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        // durable in the archive before it leaves the table
+        archive.append(rows);
+        try (PreparedStatement statement = con.prepareStatement(deleteChunk)) {
+            statement.setDate(1, cutoff);
+            statement.setInt(2, rows.get(rows.size() - 1).getApID());
+            statement.executeUpdate();
+        }
+        return rows.size();
+    }
+}
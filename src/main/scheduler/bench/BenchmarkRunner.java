@@ -0,0 +1,162 @@
+package scheduler.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A small JMH-style harness: every benchmark gets warmup iterations that are thrown away, then
+ * measurement iterations whose throughput is reported as mean +- 99.9% confidence error, and the
+ * results are written as JSON in the same shape JMH uses, so runs can be diffed or fed to the usual
+ * JMH result viewers.
+ *
+ * Usage: BenchmarkRunner [--micro] [--out results.json] [name-filter]
+ *   --micro  only the in-process benchmarks, no database needed
+ */
+public class BenchmarkRunner {
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final List<Result> results = new ArrayList<>();
+
+    // written by every benchmark so the JIT cannot drop the work as dead code
+    private volatile Object sink;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+    }
+
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean microOnly = false;
+        Path out = Paths.get("bench-results.json");
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--micro")) {
+                microOnly = true;
+            } else if (args[i].equals("--out")) {
+                out = Paths.get(args[++i]);
+            } else {
+                filter = args[i];
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(5, 10);
+        SchedulerBenchmarks.runMicro(runner, filter);
+        if (!microOnly) {
+            SchedulerBenchmarks.runEndToEnd(runner, filter);
+        }
+        runner.writeJson(out);
+        System.out.println("Results written to " + out.toAbsolutePath());
+    }
+
+    // Run op repeatedly for the given number of invocations per iteration and record its throughput
+    public void run(String name, int opsPerIteration, Operation op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(opsPerIteration, op);
+        }
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            scores[i] = iteration(opsPerIteration, op);
+        }
+        Result result = new Result(name, scores);
+        results.add(result);
+        System.out.println(result);
+    }
+
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    public int getMeasurementIterations() {
+        return measurementIterations;
+    }
+
+    private double iteration(int ops, Operation op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            sink = op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        return ops / (elapsed / 1e9);
+    }
+
+    public void writeJson(Path file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            writer.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                writer.println("  {");
+                writer.println("    \"benchmark\": \"" + r.name + "\",");
+                writer.println("    \"mode\": \"thrpt\",");
+                writer.println("    \"warmupIterations\": " + warmupIterations + ",");
+                writer.println("    \"measurementIterations\": " + measurementIterations + ",");
+                writer.println("    \"primaryMetric\": {");
+                writer.println("      \"score\": " + number(r.mean) + ",");
+                writer.println("      \"scoreError\": " + number(r.error) + ",");
+                writer.println("      \"scoreUnit\": \"ops/s\",");
+                StringBuilder raw = new StringBuilder();
+                for (int j = 0; j < r.scores.length; j++) {
+                    raw.append(j == 0 ? "" : ", ").append(number(r.scores[j]));
+                }
+                writer.println("      \"rawData\": [[" + raw + "]]");
+                writer.println("    }");
+                writer.println(i == results.size() - 1 ? "  }" : "  },");
+            }
+            writer.println("]");
+        }
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static class Result {
+        // two-sided Student t quantiles for 99.9% confidence, indexed by degrees of freedom (1..30)
+        private static final double[] T_999 = new double[] {
+                636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+                4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+                3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+
+        private final String name;
+        private final double[] scores;
+        private final double mean;
+        private final double error;
+
+        private Result(String name, double[] scores) {
+            this.name = name;
+            this.scores = scores;
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            this.mean = sum / scores.length;
+            if (scores.length < 2) {
+                this.error = Double.NaN;
+            } else {
+                double squares = 0;
+                for (double score : scores) {
+                    squares += (score - mean) * (score - mean);
+                }
+                double stdev = Math.sqrt(squares / (scores.length - 1));
+                int df = Math.min(scores.length - 1, T_999.length);
+                this.error = T_999[df - 1] * stdev / Math.sqrt(scores.length);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-45s %14.3f +- %10.3f ops/s", name, mean, error);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.service.InventoryService;
+import scheduler.tools.Fixture;
+import scheduler.util.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+
+/**
+ * The benchmarks run by {@link BenchmarkRunner}.
+ *
+ * The micro benchmarks cover password hashing, salts, the password strength check and command parsing.
+ * The end-to-end ones drive real Scheduler sessions (output discarded) through reserve,
+ * search_caregiver_schedule, show_appointments and add_doses against the database configured for the
+ * app, on a fixture of "bench_" rows that is created before and removed after the run.
+ */
+public class SchedulerBenchmarks {
+
+    private static final String prefix = "bench_";
+    private static final String password = "BenchPass11!!";
+    private static final String vaccine = prefix + "vaccine";
+    private static final String date = "2998-01-01";
+    private static final int reserveOps = 20;
+
+    public static void runMicro(BenchmarkRunner runner, String filter) throws Exception {
+        byte[] salt = Util.generateSalt();
+        if (matches("util.generateHash", filter)) {
+            runner.run("util.generateHash", 2000, () -> Util.generateHash(password, salt));
+        }
+        if (matches("util.generateSalt", filter)) {
+            runner.run("util.generateSalt", 20000, Util::generateSalt);
+        }
+        if (matches("scheduler.checkPassword", filter)) {
+            runner.run("scheduler.checkPassword", 200000, () -> Scheduler.checkPassword(password));
+        }
+        if (matches("scheduler.parseCommand", filter)) {
+            String[] lines = new String[] {
+                    "reserve 2022-07-01 Pfizer",
+                    "search_caregiver_schedule 2022-07-01",
+                    "login_patient someone " + password,
+                    "upload_availability_range 2022-07-01 2022-09-30 mon,wed,fri"};
+            int[] next = new int[1];
+            runner.run("scheduler.parseCommand", 200000,
+                    () -> Scheduler.parseCommand(lines[next[0]++ & 3]));
+        }
+    }
+
+    public static void runEndToEnd(BenchmarkRunner runner, String filter) throws Exception {
+        ConnectionManager.warmUp();
+        int caregivers = (runner.getWarmupIterations() + runner.getMeasurementIterations()) * reserveOps;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Fixture fixture = new Fixture(prefix);
+        try {
+            fixture.cleanUp();
+            createFixture(fixture, caregivers);
+
+            Scheduler patient = new Scheduler(discard);
+            patient.execute("login_patient " + prefix + "patient " + password);
+            Scheduler caregiver = new Scheduler(discard);
+            caregiver.execute("login_caregiver " + prefix + "caregiver " + password);
+
+            // every reserve claims one of the fixture's caregivers, there is exactly one per invocation
+            if (matches("e2e.reserve", filter)) {
+                runner.run("e2e.reserve", reserveOps, () -> patient.execute("reserve " + date + " " + vaccine));
+            }
+            if (matches("e2e.searchCaregiverSchedule", filter)) {
+                runner.run("e2e.searchCaregiverSchedule", 50,
+                        () -> patient.execute("search_caregiver_schedule " + date));
+            }
+            if (matches("e2e.showAppointments", filter)) {
+                runner.run("e2e.showAppointments", 50, () -> patient.execute("show_appointments"));
+            }
+            if (matches("e2e.addDoses", filter)) {
+                runner.run("e2e.addDoses", 50, () -> caregiver.execute("add_doses " + vaccine + " 1"));
+            }
+        } finally {
+            InventoryService.getInstance().flush();
+            fixture.cleanUp();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    private static boolean matches(String name, String filter) {
+        return filter.isEmpty() || name.contains(filter);
+    }
+
+    // one caregiver per reserve invocation, all free on the benchmark date, and stock that never runs out
+    private static void createFixture(Fixture fixture, int caregivers) throws SQLException {
+        fixture.addPatient(prefix + "patient").addCaregiver(prefix + "caregiver");
+        for (int i = 0; i < caregivers; i++) {
+            String caregiver = String.format("%scg%05d", prefix, i);
+            fixture.addCaregiver(caregiver).addAvailability(Date.valueOf(date), caregiver);
+        }
+        fixture.addVaccine(vaccine, 1000000).write(password);
+    }
+}
@@ -0,0 +1,307 @@
+package scheduler.cache;
+
+import scheduler.db.ConnectionManager;
+import scheduler.service.DoseShards;
+import scheduler.service.InventoryService;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of the data behind search_caregiver_schedule.
+ *
+ * Keeps, per date, the sorted set of caregivers available that day, plus one snapshot of the
+ * vaccine stock. Dates are evicted least-recently-used once there are more than the configured
+ * number of them. Writes made by this process update or invalidate the affected entries, and
+ * every entry also expires after a TTL so writes made by other processes show up eventually.
+ */
+public class AvailabilityCache {
+
+    private static final AvailabilityCache instance = new AvailabilityCache(
+            Util.envInt("AvailabilityCacheSize", 256),
+            Util.envInt("AvailabilityCacheTtlMillis", 30000));
+
+    // rows the driver fetches per round trip when streaming caregivers or vaccines
+    private static final int fetchSize = 256;
+
+    private final int maxDates;
+    private final long ttlNanos;
+
+    // access-ordered, so the eldest entry is always the least recently used date
+    private final LinkedHashMap<Date, CachedValue<SortedSet<String>>> caregivers;
+    private CachedValue<SortedMap<String, Integer>> stock = null;
+
+    // bumped on every invalidation so a load that raced with a write does not install stale data
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public AvailabilityCache(int maxDates, long ttlMillis) {
+        this.maxDates = maxDates;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.caregivers = new LinkedHashMap<Date, CachedValue<SortedSet<String>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Date, CachedValue<SortedSet<String>>> eldest) {
+                if (size() > AvailabilityCache.this.maxDates) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static AvailabilityCache getInstance() {
+        return instance;
+    }
+
+    // Caregivers available on the date, in case-insensitive username order
+    public SortedSet<String> getCaregivers(Date d) throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            CachedValue<SortedSet<String>> entry = caregivers.get(d);
+            if (entry != null && !entry.isExpired()) {
+                hits++;
+                return entry.value;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        SortedSet<String> loaded = Collections.unmodifiableSortedSet(loadCaregivers(d));
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                caregivers.put(d, new CachedValue<>(loaded));
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * One page of the caregivers available on the date: at most limit usernames after the given one
+     * (null for the first page), in the database's username order.
+     *
+     * Pages are always read from the database, with a keyset seek on the (Time, Username) key, so a
+     * date with thousands of caregivers never has to be loaded whole and every page compares the
+     * cursor under the same collation that ordered the page before it. A first page that turns out
+     * to hold every caregiver of the date is cached like a full load.
+     */
+    public List<String> getCaregivers(Date d, String after, int limit) throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+
+        // read one row past the page to learn whether it is the whole date
+        List<String> loaded = loadCaregivers(d, after, limit + 1);
+        if (loaded.size() <= limit) {
+            if (after == null) {
+                TreeSet<String> all = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                all.addAll(loaded);
+                synchronized (this) {
+                    if (loadGeneration == generation) {
+                        caregivers.put(d, new CachedValue<>(Collections.unmodifiableSortedSet(all)));
+                    }
+                }
+            }
+            return loaded;
+        }
+        return loaded.subList(0, limit);
+    }
+
+    // Doses left per vaccine, in name order
+    public SortedMap<String, Integer> getVaccineStock() throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            if (stock != null && !stock.isExpired()) {
+                hits++;
+                return stock.value;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        SortedMap<String, Integer> loaded = Collections.unmodifiableSortedMap(loadStock());
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                stock = new CachedValue<>(loaded);
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized void addCaregiver(Date d, String username) {
+        generation++;
+        CachedValue<SortedSet<String>> entry = caregivers.get(d);
+        if (entry != null) {
+            TreeSet<String> updated = new TreeSet<>(entry.value);
+            updated.add(username);
+            caregivers.put(d, entry.replace(Collections.unmodifiableSortedSet(updated)));
+        }
+    }
+
+    public synchronized void removeCaregiver(Date d, String username) {
+        generation++;
+        CachedValue<SortedSet<String>> entry = caregivers.get(d);
+        if (entry != null) {
+            TreeSet<String> updated = new TreeSet<>(entry.value);
+            updated.remove(username);
+            caregivers.put(d, entry.replace(Collections.unmodifiableSortedSet(updated)));
+        }
+    }
+
+    public synchronized void invalidateDate(Date d) {
+        generation++;
+        caregivers.remove(d);
+    }
+
+    // Apply a change in doses to the cached stock, if the vaccine is cached at all
+    public synchronized void adjustStock(String vaccine, int delta) {
+        generation++;
+        if (stock == null) {
+            return;
+        }
+        Integer doses = stock.value.get(vaccine);
+        if (doses == null) {
+            stock = null;
+            return;
+        }
+        TreeMap<String, Integer> updated = new TreeMap<>(stock.value);
+        updated.put(vaccine, doses + delta);
+        stock = stock.replace(Collections.unmodifiableSortedMap(updated));
+    }
+
+    public synchronized void invalidateStock() {
+        generation++;
+        stock = null;
+    }
+
+    public synchronized void clear() {
+        generation++;
+        caregivers.clear();
+        stock = null;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AvailabilityCache{dates=%d/%d, hits=%d, misses=%d, hitRatio=%.2f, evictions=%d}",
+                caregivers.size(), maxDates, hits, misses, getHitRatio(), evictions);
+    }
+
+    private static SortedSet<String> loadCaregivers(Date d) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getAvailabilities = "SELECT Username FROM Availabilities WHERE Time = ?";
+        try (PreparedStatement statement = con.prepareStatement(getAvailabilities)) {
+            statement.setFetchSize(fetchSize);
+            statement.setDate(1, d);
+            ResultSet resultSet = statement.executeQuery();
+            TreeSet<String> usernames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            while (resultSet.next()) {
+                usernames.add(resultSet.getString("Username"));
+            }
+            return usernames;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static List<String> loadCaregivers(Date d, String after, int limit) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getPage = "SELECT TOP (?) Username FROM Availabilities WHERE Time = ? AND Username > ? ORDER BY Username";
+        try (PreparedStatement statement = con.prepareStatement(getPage)) {
+            statement.setFetchSize(Math.min(limit, fetchSize));
+            statement.setInt(1, limit);
+            statement.setDate(2, d);
+            // every username sorts after the empty string
+            statement.setString(3, after == null ? "" : after);
+            ResultSet resultSet = statement.executeQuery();
+            List<String> usernames = new ArrayList<>();
+            while (resultSet.next()) {
+                usernames.add(resultSet.getString("Username"));
+            }
+            return usernames;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static SortedMap<String, Integer> loadStock() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getVaccines = DoseShards.totals + "GROUP BY v.Name";
+        try (PreparedStatement statement = con.prepareStatement(getVaccines)) {
+            statement.setFetchSize(fetchSize);
+            ResultSet resultSet = statement.executeQuery();
+            TreeMap<String, Integer> doses = new TreeMap<>();
+            while (resultSet.next()) {
+                String name = resultSet.getString("Name");
+                // include dose changes that are still waiting to be flushed
+                doses.put(name, resultSet.getInt("Doses") + InventoryService.getInstance().getPending(name));
+            }
+            return doses;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private class CachedValue<T> {
+        private final T value;
+        private final long loadedAt;
+
+        private CachedValue(T value) {
+            this(value, System.nanoTime());
+        }
+
+        private CachedValue(T value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+
+        // updates keep the original load time, the TTL bounds staleness against other processes
+        private CachedValue<T> replace(T updated) {
+            return new CachedValue<>(updated, loadedAt);
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - loadedAt > ttlNanos;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package scheduler.cache;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.Util;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the usernames in one user table, so create_patient and create_caregiver can tell
+ * that a name is free without asking the database.
+ *
+ * build() sizes the filter for the table at UsernameFilterFppPerMille false positives and streams every
+ * username into it; saveToDB and the bulk importer add the names they insert. A name the filter has
+ * never seen is definitely not taken and skips the database. A possible hit falls back to a primary
+ * key lookup, which also tells the filter whether it was a false positive. Until build() has run,
+ * every name counts as a possible hit.
+ *
+ * Accounts created by other processes after the build are not in the filter. Their names look free
+ * to this process, and the insert is then refused by the table's primary key, so uniqueness never
+ * depends on the filter.
+ */
+public class UsernameFilter {
+
+    private static final UsernameFilter patients = new UsernameFilter("Patients");
+    private static final UsernameFilter caregivers = new UsernameFilter("Caregivers");
+
+    private static final double fpp = Util.envInt("UsernameFilterFppPerMille", 10) / 1000.0;
+    // the smallest filter built, so a young table has room to grow before the rate suffers
+    private static final int minCapacity = Util.envInt("UsernameFilterMinCapacity", 10000);
+    private static final int fetchSize = 1024;
+
+    private final String table;
+    private volatile Bits bits = null;
+    // while a build scans the table, names added meanwhile must land in the filter being built too
+    private volatile Bits building = null;
+
+    private final AtomicLong definitelyAbsent = new AtomicLong();
+    private final AtomicLong truePositives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private UsernameFilter(String table) {
+        this.table = table;
+    }
+
+    public static UsernameFilter getPatients() {
+        return patients;
+    }
+
+    public static UsernameFilter getCaregivers() {
+        return caregivers;
+    }
+
+    // Size the filter for the table and load every username into it, returns how many were loaded
+    public synchronized int build() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        int loaded = 0;
+        try {
+            int rows;
+            try (PreparedStatement statement = con.prepareStatement("SELECT COUNT(*) FROM " + table)) {
+                ResultSet resultSet = statement.executeQuery();
+                resultSet.next();
+                rows = resultSet.getInt(1);
+            }
+            Bits fresh = new Bits(Math.max(minCapacity, 2L * rows), fpp);
+            building = fresh;
+            try (PreparedStatement statement = con.prepareStatement("SELECT Username FROM " + table)) {
+                statement.setFetchSize(fetchSize);
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    fresh.add(resultSet.getString("Username"));
+                    loaded++;
+                }
+            }
+            bits = fresh;
+        } finally {
+            building = null;
+            cm.closeConnection();
+        }
+        return loaded;
+    }
+
+    // Record a username that was just inserted
+    public void add(String username) {
+        Bits current = bits;
+        if (current != null) {
+            current.add(username);
+        }
+        Bits next = building;
+        if (next != null) {
+            next.add(username);
+        }
+    }
+
+    // Whether the username is in the table: the filter answers a definite no, the database everything else
+    public boolean exists(String username) throws SQLException {
+        Bits current = bits;
+        if (current != null && !current.mightContain(username)) {
+            definitelyAbsent.incrementAndGet();
+            return false;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String selectUsername = "SELECT 1 FROM " + table + " WHERE Username = ?";
+        try (PreparedStatement statement = con.prepareStatement(selectUsername)) {
+            statement.setString(1, username);
+            ResultSet resultSet = statement.executeQuery();
+            boolean exists = resultSet.next();
+            if (current != null) {
+                (exists ? truePositives : falsePositives).incrementAndGet();
+            }
+            return exists;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Share of the free names checked so far that the filter could not rule out
+    public double getFalsePositiveRate() {
+        long negatives = definitelyAbsent.get() + falsePositives.get();
+        return negatives == 0 ? 0 : (double) falsePositives.get() / negatives;
+    }
+
+    // The rate the filter should have at its current fill
+    public double getExpectedFalsePositiveRate() {
+        Bits current = bits;
+        return current == null ? 1 : current.expectedFalsePositiveRate();
+    }
+
+    @Override
+    public String toString() {
+        Bits current = bits;
+        if (current == null) {
+            return "UsernameFilter{" + table + ", not built}";
+        }
+        return String.format("UsernameFilter{%s, names=%d, bits=%d, hashes=%d, skipped=%d, taken=%d, "
+                        + "falsePositives=%d, fpRate=%.4f, expectedFpRate=%.4f}",
+                table, current.added.get(), current.size, current.hashes, definitelyAbsent.get(),
+                truePositives.get(), falsePositives.get(), getFalsePositiveRate(), current.expectedFalsePositiveRate());
+    }
+
+    private static class Bits {
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashes;
+        private final AtomicLong added = new AtomicLong();
+
+        private Bits(long capacity, double fpp) {
+            long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+            this.words = new AtomicLongArray(words);
+            this.size = 64L * words;
+            this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+        }
+
+        private void add(String username) {
+            long hash = hash(username);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, size);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                do {
+                    value = words.get(word);
+                } while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask));
+            }
+            added.incrementAndGet();
+        }
+
+        private boolean mightContain(String username) {
+            long hash = hash(username);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, size);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double expectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double) hashes * added.get() / size), hashes);
+        }
+
+        // 64-bit FNV-1a with a final mix, split into the two hashes of double hashing
+        private static long hash(String username) {
+            // usernames compare case-insensitively, like the database's default collation
+            byte[] bytes = username.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -1,41 +1,185 @@
 package scheduler.db;
 
+import scheduler.util.Util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    // ConnectionUrl points the app at any other server, e.g. a local SQL Server for stress runs
+    private static final String connectionUrl = System.getenv("ConnectionUrl") != null
+            ? System.getenv("ConnectionUrl")
+            : "jdbc:sqlserver://" + System.getenv("Server") +
+              ".database.windows.net:1433;database=" + System.getenv("DBName");
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
+
+    // pool settings, all of them can be overridden through environment variables
+    private static final int poolMaxSize = Util.envInt("PoolMaxSize", 10);
+    private static final int poolMinIdle = Util.envInt("PoolMinIdle", 2);
+    private static final long poolMaxWaitMillis = Util.envInt("PoolMaxWaitMillis", 5000);
+    private static final long poolIdleTimeoutMillis = Util.envInt("PoolIdleTimeoutMillis", 300000);
+    private static final int poolValidationTimeoutSeconds = Util.envInt("PoolValidationTimeoutSeconds", 2);
+    // prepared statements kept per pooled connection, 0 turns the cache off
+    private static final int statementCacheSize = Util.envInt("StatementCacheSize", 32);
+
+    // per-statement latency tracing, SqlTracing=0 turns it off; executions slower than
+    // SlowQueryMillis are appended to the SlowQueryLog file
+    private static final SqlTracer tracer = Util.envInt("SqlTracing", 1) == 0 ? null
+            : new SqlTracer(Util.envInt("SlowQueryMillis", 500),
+                    Paths.get(System.getenv("SlowQueryLog") != null ? System.getenv("SlowQueryLog") : "slow-queries.log"));
+
+    private static volatile ConnectionPool pool = null;
+    // the connection pinned to this thread by bindConnection(), createConnection() hands it out instead of borrowing
+    private static final ThreadLocal<Connection> bound = new ThreadLocal<>();
 
     private Connection con = null;
+    private boolean lockTimeoutSet = false;
 
     public ConnectionManager() {
-        try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+    }
+
+    // Borrow a connection from the shared pool, closeConnection() hands it back. Throws when the pool
+    // times out or the server cannot be reached, it never returns null
+    public Connection createConnection() throws SQLException {
+        Connection pinned = bound.get();
+        if (pinned != null) {
+            con = pinned;
+            return con;
         }
+        con = getPool().borrow();
+        return con;
     }
 
-    public Connection createConnection() {
-        try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // Borrow a pooled connection of its own even when one is bound to this thread, for writes that must
+    // commit or roll back by themselves rather than with the bound transaction
+    public Connection createUnboundConnection() throws SQLException {
+        con = getPool().borrow();
+        if (bound.get() != null) {
+            // the bound transaction may hold locks this connection needs, and it cannot let go of them
+            // while its thread waits here, so give up after PoolMaxWaitMillis instead of hanging
+            try (Statement statement = con.createStatement()) {
+                statement.execute("SET LOCK_TIMEOUT " + poolMaxWaitMillis);
+                lockTimeoutSet = true;
+            } catch (SQLException e) {
+                closeConnection();
+                throw e;
+            }
         }
         return con;
     }
 
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
+        try {
+            if (lockTimeoutSet) {
+                lockTimeoutSet = false;
+                try (Statement statement = this.con.createStatement()) {
+                    statement.execute("SET LOCK_TIMEOUT -1");
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    // Open the minimum number of idle connections up front so the first command does not pay for them
+    public static void warmUp() {
+        try {
+            getPool().warmUp();
+        } catch (SQLException e) {
+            System.out.println("Could not pre-warm the connection pool");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Pin one pooled connection to the calling thread until unbindConnection().
+     *
+     * Every createConnection() on this thread then gets that same connection, so consecutive commands
+     * skip the borrow and can share one transaction: the returned connection is the real one, while
+     * the call sites get a view whose close(), commit() and setAutoCommit() do nothing. Transaction
+     * boundaries are up to whoever bound the connection. createUnboundConnection() still borrows a
+     * separate one.
+     */
+    public static Connection bindConnection() throws SQLException {
+        if (bound.get() != null) {
+            throw new IllegalStateException("A connection is already bound to this thread");
+        }
+        Connection physical = getPool().borrow();
+        bound.set((Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("close") || name.equals("commit") || name.equals("setAutoCommit")) {
+                        return null;
+                    }
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    try {
+                        return method.invoke(physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }));
+        return physical;
+    }
+
+    // Stop handing out the bound connection, the caller still has to close() the one bindConnection() returned
+    public static void unbindConnection() {
+        bound.remove();
+    }
+
+    public static PoolStats getPoolStats() {
+        return getPool().getStats();
+    }
+
+    // null when tracing is turned off
+    public static SqlTracer getTracer() {
+        return tracer;
+    }
+
+    public static void shutdown() {
+        ConnectionPool p = pool;
+        if (p != null) {
+            p.shutdown();
+        }
+    }
+
+    private static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (ConnectionManager.class) {
+                p = pool;
+                if (p == null) {
+                    try {
+                        Class.forName(driverName);
+                    } catch (ClassNotFoundException e) {
+                        System.out.println(e.toString());
+                    }
+                    p = new ConnectionPool(connectionUrl, userName, userPass, poolMaxSize, poolMinIdle,
+                            poolMaxWaitMillis, poolIdleTimeoutMillis, poolValidationTimeoutSeconds,
+                            statementCacheSize, tracer);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
 }
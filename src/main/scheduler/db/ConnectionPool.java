@@ -0,0 +1,432 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of physical JDBC connections shared by the whole process.
+ *
+ * Connections handed out by {@link #borrow()} are proxies: calling close() on them
+ * returns the underlying connection to the pool instead of closing it.
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String userName;
+    private final String userPass;
+
+    private final int maxSize;
+    private final int minIdle;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+    private final StatementCache.Counters statementCounters = new StatementCache.Counters();
+    // null when tracing is turned off
+    private final SqlTracer tracer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // most recently returned connection is at the head, so a few hot connections get reused
+    private final ArrayDeque<PooledEntry> idle = new ArrayDeque<>();
+    private int total = 0;
+    private int active = 0;
+    private boolean closed = false;
+
+    private long borrowCount = 0;
+    private long waitCount = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long timeoutCount = 0;
+    private long evictedCount = 0;
+
+    private final ScheduledExecutorService evictor;
+
+    public ConnectionPool(String url, String userName, String userPass, int maxSize, int minIdle,
+                          long maxWaitMillis, long idleTimeoutMillis, int validationTimeoutSeconds,
+                          int statementCacheSize, SqlTracer tracer) {
+        if (maxSize <= 0 || minIdle < 0 || minIdle > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size!");
+        }
+        this.url = url;
+        this.userName = userName;
+        this.userPass = userPass;
+        this.maxSize = maxSize;
+        this.minIdle = minIdle;
+        this.maxWaitMillis = maxWaitMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+        this.tracer = tracer;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Open connections until minIdle connections are sitting in the pool
+    public void warmUp() throws SQLException {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || idle.size() >= minIdle || total >= maxSize) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            Connection physical;
+            try {
+                physical = open();
+            } catch (SQLException e) {
+                lock.lock();
+                try {
+                    total--;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            lock.lock();
+            try {
+                idle.addLast(new PooledEntry(physical));
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        boolean waited = false;
+
+        while (true) {
+            PooledEntry entry = null;
+            boolean create = false;
+
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    if (!idle.isEmpty()) {
+                        entry = idle.pollFirst();
+                        active++;
+                        break;
+                    }
+                    if (total < maxSize) {
+                        total++;
+                        active++;
+                        create = true;
+                        break;
+                    }
+                    if (remaining <= 0) {
+                        timeoutCount++;
+                        throw new SQLException("Timed out after " + maxWaitMillis
+                                + " ms waiting for a database connection");
+                    }
+                    waited = true;
+                    try {
+                        remaining = available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection", e);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    entry = new PooledEntry(open());
+                } catch (SQLException e) {
+                    discard(null);
+                    throw e;
+                }
+            } else if (!validate(entry)) {
+                discard(entry);
+                continue;
+            }
+
+            recordBorrow(System.nanoTime() - start, waited);
+            return entry.lease();
+        }
+    }
+
+    public PoolStats getStats() {
+        lock.lock();
+        try {
+            return new PoolStats(active, idle.size(), total, maxSize, borrowCount, waitCount,
+                    totalWaitNanos, maxWaitNanos, timeoutCount, evictedCount,
+                    statementCounters.hits.sum(), statementCounters.misses.sum(),
+                    statementCounters.evictions.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        ArrayDeque<PooledEntry> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evictor.shutdownNow();
+        for (PooledEntry entry : toClose) {
+            closeQuietly(entry.physical);
+        }
+    }
+
+    private Connection open() throws SQLException {
+        return DriverManager.getConnection(url, userName, userPass);
+    }
+
+    private boolean validate(PooledEntry entry) {
+        try {
+            return !entry.physical.isClosed() && entry.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordBorrow(long waitNanos, boolean waited) {
+        lock.lock();
+        try {
+            borrowCount++;
+            if (waited) {
+                waitCount++;
+            }
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drop a broken connection (or a failed creation slot) and let a waiter try again
+    private void discard(PooledEntry entry) {
+        lock.lock();
+        try {
+            total--;
+            active--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (entry != null) {
+            closeQuietly(entry.physical);
+        }
+    }
+
+    private void release(PooledEntry entry) {
+        boolean healthy = reset(entry.physical);
+        lock.lock();
+        try {
+            active--;
+            if (healthy && !closed) {
+                entry.lastReturned = System.nanoTime();
+                idle.addFirst(entry);
+                available.signal();
+                return;
+            }
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(entry.physical);
+    }
+
+    // Undo whatever the borrower left behind so the next borrower gets a clean connection. A T-SQL
+    // batch can open a transaction the driver does not know about, so that is checked on the server
+    // too, along with the XACT_ABORT such batches switch on.
+    private boolean reset(Connection physical) {
+        try {
+            if (physical.isClosed()) {
+                return false;
+            }
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+            try (Statement statement = physical.createStatement()) {
+                statement.execute("IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION; SET XACT_ABORT OFF;");
+            }
+            physical.clearWarnings();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        ArrayDeque<PooledEntry> evicted = new ArrayDeque<>();
+        lock.lock();
+        try {
+            // the oldest idle connections sit at the tail
+            Iterator<PooledEntry> it = idle.descendingIterator();
+            while (it.hasNext() && idle.size() > minIdle) {
+                PooledEntry entry = it.next();
+                if (entry.lastReturned - cutoff > 0) {
+                    break;
+                }
+                it.remove();
+                total--;
+                evictedCount++;
+                evicted.add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledEntry entry : evicted) {
+            closeQuietly(entry.physical);
+        }
+        try {
+            warmUp();
+        } catch (SQLException e) {
+            // the next borrow will surface the error
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // nothing useful to do with a connection we are throwing away
+        }
+    }
+
+    private class PooledEntry {
+        private final Connection physical;
+        private final StatementCache statementCache;
+        private long lastReturned = System.nanoTime();
+
+        private PooledEntry(Connection physical) {
+            this.physical = physical;
+            this.statementCache = new StatementCache(physical, statementCacheSize, statementCounters);
+        }
+
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new LeaseHandler(this));
+        }
+    }
+
+    // One handler per borrow, so a stale reference cannot touch a connection someone else is using
+    private class LeaseHandler implements InvocationHandler {
+        private PooledEntry entry;
+        // statements the borrower forgot to close are closed (or given back to the cache) when the connection goes back
+        private final List<Statement> statements = new ArrayList<>();
+
+        private LeaseHandler(PooledEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (entry != null) {
+                    PooledEntry returned = entry;
+                    entry = null;
+                    closeStatements();
+                    release(returned);
+                }
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return entry == null;
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "PooledConnection[" + (entry == null ? "closed" : entry.physical) + "]";
+            }
+            if (entry == null) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            Object result;
+            if (name.equals("prepareStatement") && args.length == 1) {
+                // plain prepareStatement(sql) calls are served from this connection's statement cache
+                result = entry.statementCache.prepare((String) args[0], (Connection) proxy);
+            } else {
+                try {
+                    result = method.invoke(entry.physical, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            if (tracer != null && name.equals("prepareStatement")) {
+                result = tracer.wrap((PreparedStatement) result, (String) args[0]);
+            }
+            if (result instanceof Statement) {
+                if (statements.size() >= 64) {
+                    // a connection bound for a whole script hands out many statements, forget the closed ones
+                    pruneClosedStatements();
+                }
+                statements.add((Statement) result);
+            }
+            return result;
+        }
+
+        private void pruneClosedStatements() {
+            Iterator<Statement> it = statements.iterator();
+            while (it.hasNext()) {
+                try {
+                    if (it.next().isClosed()) {
+                        it.remove();
+                    }
+                } catch (SQLException e) {
+                    // keep it, closeStatements() gets another go when the connection goes back
+                }
+            }
+        }
+
+        private void closeStatements() {
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // the connection is reset right after, nothing else to do
+                }
+            }
+            statements.clear();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package scheduler.db;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings the database schema up to date at startup.
+ *
+ * Migrations are the numbered scripts under resources/migrations, listed in {@link #migrations} in
+ * the order they apply. Each one runs in its own transaction together with the SchemaVersion row
+ * recording it, so a failed migration leaves nothing behind and is retried on the next start.
+ * Scripts are split into batches on lines holding only GO, like sqlcmd does. An application lock
+ * keeps two processes starting at the same time from applying the same version twice.
+ *
+ * The scripts are written to be idempotent, so a database created from create.sql, which already
+ * has some of their changes, migrates cleanly too.
+ */
+public class MigrationRunner {
+
+    // append only: never renumber or edit a migration once it has shipped
+    private static final String[] migrations = new String[] {
+            "V1__appointment_indexes.sql",
+            "V2__password_iterations.sql",
+            "V3__waitlist.sql",
+            "V4__appointment_time_index.sql",
+            "V5__write_journal.sql",
+            "V6__vaccine_shards.sql"
+    };
+
+    private static final String createVersionTable =
+            "IF OBJECT_ID('SchemaVersion') IS NULL " +
+            "CREATE TABLE SchemaVersion (" +
+            "    Version int PRIMARY KEY, " +
+            "    Script varchar(255) NOT NULL, " +
+            "    AppliedOn datetime2 NOT NULL DEFAULT SYSUTCDATETIME())";
+
+    // Apply every migration the database does not have yet, returns how many were applied
+    public static int migrate() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            try (Statement statement = con.createStatement()) {
+                statement.execute(createVersionTable);
+            }
+            int applied = 0;
+            for (String script : migrations) {
+                if (apply(con, script)) {
+                    applied++;
+                }
+            }
+            return applied;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public static int getLatestVersion() {
+        return versionOf(migrations[migrations.length - 1]);
+    }
+
+    private static boolean apply(Connection con, String script) throws SQLException {
+        int version = versionOf(script);
+        List<String> batches = load(script);
+        con.setAutoCommit(false);
+        try {
+            try (Statement statement = con.createStatement()) {
+                // held until the commit or rollback below
+                statement.execute("EXEC sp_getapplock @Resource = 'SchemaVersion', @LockMode = 'Exclusive', "
+                        + "@LockOwner = 'Transaction'");
+            }
+            if (isApplied(con, version)) {
+                con.rollback();
+                return false;
+            }
+            try (Statement statement = con.createStatement()) {
+                for (String batch : batches) {
+                    statement.execute(batch);
+                }
+            }
+            try (PreparedStatement statement =
+                         con.prepareStatement("INSERT INTO SchemaVersion (Version, Script) VALUES (?, ?)")) {
+                statement.setInt(1, version);
+                statement.setString(2, script);
+                statement.executeUpdate();
+            }
+            con.commit();
+            System.out.println("Applied migration " + script);
+            return true;
+        } catch (SQLException e) {
+            con.rollback();
+            throw new SQLException("Migration " + script + " failed", e);
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    private static boolean isApplied(Connection con, int version) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement("SELECT 1 FROM SchemaVersion WHERE Version = ?")) {
+            statement.setInt(1, version);
+            ResultSet resultSet = statement.executeQuery();
+            return resultSet.next();
+        }
+    }
+
+    private static int versionOf(String script) {
+        return Integer.parseInt(script.substring(1, script.indexOf("__")));
+    }
+
+    // The script's batches, split on GO lines
+    public static List<String> load(String script) throws SQLException {
+        InputStream in = MigrationRunner.class.getResourceAsStream("/resources/migrations/" + script);
+        if (in == null) {
+            throw new SQLException("Migration " + script + " is missing from the classpath");
+        }
+        List<String> batches = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().equalsIgnoreCase("GO")) {
+                    addBatch(batches, batch);
+                } else {
+                    batch.append(line).append('\n');
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not read migration " + script, e);
+        }
+        addBatch(batches, batch);
+        return batches;
+    }
+
+    private static void addBatch(List<String> batches, StringBuilder batch) {
+        // a batch of nothing but comments has nothing to run
+        boolean empty = true;
+        for (String line : batch.toString().split("\n")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("--")) {
+                empty = false;
+                break;
+            }
+        }
+        if (!empty) {
+            batches.add(batch.toString());
+        }
+        batch.setLength(0);
+    }
+}
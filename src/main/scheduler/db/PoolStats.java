@@ -0,0 +1,110 @@
+package scheduler.db;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point-in-time snapshot of the counters kept by {@link ConnectionPool}.
+ */
+public class PoolStats {
+    private final int active;
+    private final int idle;
+    private final int total;
+    private final int maxSize;
+    private final long borrowCount;
+    private final long waitCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long timeoutCount;
+    private final long evictedCount;
+    private final long statementHits;
+    private final long statementMisses;
+    private final long statementEvictions;
+
+    PoolStats(int active, int idle, int total, int maxSize, long borrowCount, long waitCount,
+              long totalWaitNanos, long maxWaitNanos, long timeoutCount, long evictedCount,
+              long statementHits, long statementMisses, long statementEvictions) {
+        this.active = active;
+        this.idle = idle;
+        this.total = total;
+        this.maxSize = maxSize;
+        this.borrowCount = borrowCount;
+        this.waitCount = waitCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.timeoutCount = timeoutCount;
+        this.evictedCount = evictedCount;
+        this.statementHits = statementHits;
+        this.statementMisses = statementMisses;
+        this.statementEvictions = statementEvictions;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    public long getStatementHits() {
+        return statementHits;
+    }
+
+    public long getStatementMisses() {
+        return statementMisses;
+    }
+
+    public long getStatementEvictions() {
+        return statementEvictions;
+    }
+
+    public double getStatementHitRatio() {
+        long lookups = statementHits + statementMisses;
+        return lookups == 0 ? 0 : (double) statementHits / lookups;
+    }
+
+    public double getAverageWaitMillis() {
+        if (borrowCount == 0) {
+            return 0;
+        }
+        return (double) totalWaitNanos / borrowCount / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxWaitMillis() {
+        return (double) maxWaitNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PoolStats{active=%d, idle=%d, total=%d/%d, borrows=%d, waits=%d, "
+                        + "avgWait=%.2fms, maxWait=%.2fms, timeouts=%d, evicted=%d, "
+                        + "statementCache={hits=%d, misses=%d, hitRatio=%.2f, evictions=%d}}",
+                active, idle, total, maxSize, borrowCount, waitCount,
+                getAverageWaitMillis(), getMaxWaitMillis(), timeoutCount, evictedCount,
+                statementHits, statementMisses, getStatementHitRatio(), statementEvictions);
+    }
+}
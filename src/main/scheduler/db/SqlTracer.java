@@ -0,0 +1,243 @@
+package scheduler.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-SQL-template latency, row and error statistics for the statements handed out by the pool.
+ *
+ * Every execute call on a traced statement is timed into a log-scale histogram kept per SQL text, rows
+ * read through its result sets and failures are counted. Executions slower than the threshold, and
+ * every failed one, are appended to the slow-query log.
+ */
+public class SqlTracer {
+
+    // histogram buckets grow by ~19% each, from 1 microsecond up to about 2.5 minutes
+    private static final double BUCKET_GROWTH = Math.pow(2, 0.25);
+    private static final int BUCKETS = 112;
+
+    private final long slowQueryNanos;
+    private final Path slowQueryLog;
+    private final ConcurrentHashMap<String, TemplateStats> templates = new ConcurrentHashMap<>();
+    private BufferedWriter slowQueryWriter = null;
+
+    public SqlTracer(long slowQueryMillis, Path slowQueryLog) {
+        this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    PreparedStatement wrap(PreparedStatement statement, String sql) {
+        TemplateStats stats = templates.computeIfAbsent(normalize(sql), TemplateStats::new);
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, new StatementHandler(statement, stats));
+    }
+
+    // Snapshot of every template seen so far
+    public List<TemplateStats> getTemplates() {
+        return new ArrayList<>(templates.values());
+    }
+
+    public void reset() {
+        templates.clear();
+    }
+
+    private static String normalize(String sql) {
+        return sql.trim().replaceAll("\\s+", " ");
+    }
+
+    private void record(TemplateStats stats, long nanos, Throwable error) {
+        stats.record(nanos, error != null);
+        // failures are logged whatever their latency, the callers tend to rethrow them without the cause
+        if (nanos >= slowQueryNanos || error != null) {
+            logSlowQuery(stats.sql, nanos, error);
+        }
+    }
+
+    private synchronized void logSlowQuery(String sql, long nanos, Throwable error) {
+        try {
+            if (slowQueryWriter == null) {
+                slowQueryWriter = Files.newBufferedWriter(slowQueryLog, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            slowQueryWriter.write(Instant.now() + " " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms "
+                    + (error == null ? "" : "[" + error + "] ") + sql);
+            slowQueryWriter.newLine();
+            slowQueryWriter.flush();
+        } catch (IOException e) {
+            // tracing must never break the query it traces
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        double micros = nanos / 1000.0;
+        if (micros <= 1) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log(micros) / Math.log(BUCKET_GROWTH));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static double bucketUpperMillis(int bucket) {
+        return Math.pow(BUCKET_GROWTH, bucket) / 1000.0;
+    }
+
+    public static class TemplateStats {
+        private final String sql;
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private TemplateStats(String sql) {
+            this.sql = sql;
+        }
+
+        private void record(long nanos, boolean failed) {
+            calls.increment();
+            if (failed) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            histogram.incrementAndGet(bucketOf(nanos));
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public double getTotalMillis() {
+            return totalNanos.sum() / 1e6;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        // Upper bound of the histogram bucket holding the given percentile (0-100), capped at the max
+        public double getPercentileMillis(double percentile) {
+            long count = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = histogram.get(i);
+                count += snapshot[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperMillis(i), getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final TemplateStats stats;
+
+        private StatementHandler(PreparedStatement statement, TemplateStats stats) {
+            this.statement = statement;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            boolean timed = name.startsWith("execute");
+            long start = timed ? System.nanoTime() : 0;
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                if (timed) {
+                    record(stats, System.nanoTime() - start, e.getCause());
+                }
+                throw e.getCause();
+            }
+            if (timed) {
+                record(stats, System.nanoTime() - start, null);
+            }
+            if (result instanceof ResultSet) {
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                        new Class<?>[] {ResultSet.class}, new ResultSetHandler((ResultSet) result, stats));
+            }
+            return result;
+        }
+    }
+
+    // Counts the rows the caller actually reads
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet resultSet;
+        private final TemplateStats stats;
+
+        private ResultSetHandler(ResultSet resultSet, TemplateStats stats) {
+            this.resultSet = resultSet;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            Object result;
+            try {
+                result = method.invoke(resultSet, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (name.equals("next") && Boolean.TRUE.equals(result)) {
+                stats.rows.increment();
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepared statements of one pooled connection, keyed by SQL text.
+ *
+ * prepare() hands out a proxy whose close() puts the statement back in the cache (clearing its
+ * parameters and closing its result sets) instead of closing it, so the next borrower of the same
+ * connection reuses the server-side plan. The cache is LRU bounded; evicted statements are closed,
+ * or closed on return if they were in use when they got evicted. A connection is only ever used by
+ * one borrower at a time, so nothing here needs to be thread-safe except the shared counters.
+ */
+class StatementCache {
+
+    static class Counters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+    }
+
+    private final Connection physical;
+    private final int maxSize;
+    private final Counters counters;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    StatementCache(Connection physical, int maxSize, Counters counters) {
+        this.physical = physical;
+        this.maxSize = maxSize;
+        this.counters = counters;
+        this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= StatementCache.this.maxSize) {
+                    return false;
+                }
+                StatementCache.this.counters.evictions.increment();
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql, Connection owner) throws SQLException {
+        CachedStatement cached = statements.get(sql);
+        if (cached != null && !cached.inUse) {
+            counters.hits.increment();
+            return cached.lease(owner);
+        }
+        counters.misses.increment();
+        if (cached != null) {
+            // the same SQL is already open on this connection, give out a throwaway statement
+            return physical.prepareStatement(sql);
+        }
+        cached = new CachedStatement(physical.prepareStatement(sql));
+        if (maxSize > 0) {
+            statements.put(sql, cached);
+        } else {
+            cached.evicted = true;
+        }
+        return cached.lease(owner);
+    }
+
+    void closeAll() {
+        for (CachedStatement cached : statements.values()) {
+            cached.evict();
+        }
+        statements.clear();
+    }
+
+    private static class CachedStatement {
+        private final PreparedStatement statement;
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        private PreparedStatement lease(Connection owner) {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] {PreparedStatement.class}, new LeaseHandler(this, owner));
+        }
+
+        private void evict() {
+            evicted = true;
+            if (!inUse) {
+                closeQuietly();
+            }
+        }
+
+        private void giveBack(List<ResultSet> resultSets) {
+            for (ResultSet resultSet : resultSets) {
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                    // the statement below is reset or closed either way
+                }
+            }
+            inUse = false;
+            if (evicted) {
+                closeQuietly();
+                return;
+            }
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.clearWarnings();
+            } catch (SQLException e) {
+                evicted = true;
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // nothing useful to do with a statement we are throwing away
+            }
+        }
+    }
+
+    // One handler per lease of a cached statement, close() gives the statement back to the cache
+    private static class LeaseHandler implements InvocationHandler {
+        private final Connection owner;
+        private CachedStatement cached;
+        private final List<ResultSet> resultSets = new ArrayList<>();
+
+        private LeaseHandler(CachedStatement cached, Connection owner) {
+            this.cached = cached;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (cached != null) {
+                    CachedStatement returned = cached;
+                    cached = null;
+                    returned.giveBack(resultSets);
+                }
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return cached == null;
+            }
+            if (name.equals("getConnection")) {
+                return owner;
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "CachedStatement[" + (cached == null ? "closed" : cached.statement) + "]";
+            }
+            if (cached == null) {
+                throw new SQLException("Statement has already been closed");
+            }
+            Object result;
+            try {
+                result = method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet) {
+                resultSets.add((ResultSet) result);
+            }
+            return result;
+        }
+    }
+}
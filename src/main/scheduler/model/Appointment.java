@@ -7,16 +7,19 @@ import java.sql.*;
 import java.util.Arrays;
 
 public class Appointment {
-    private final int apID;
+    // assigned by the database's IDENTITY column, -1 until the appointment is saved
+    private int apID;
     private final String cUsername;
     private final String pUsername;
     private final String vName;
+    private final Date time;
 
     private Appointment(AppointmentBuilder builder) {
-        this.apID = builder.apID;
+        this.apID = -1;
         this.cUsername = builder.cUsername;
         this.pUsername = builder.pUsername;
         this.vName = builder.vName;
+        this.time = builder.time;
     }
 
     private Appointment(AppointmentGetter getter) {
@@ -24,6 +27,7 @@ public class Appointment {
         this.cUsername = getter.cUsername;
         this.pUsername = getter.pUsername;
         this.vName = getter.vName;
+        this.time = getter.time;
     }
 
     public int getApID() {
@@ -42,36 +46,42 @@ public class Appointment {
         return vName;
     }
 
-    public void saveToDB() throws SQLException {
+    public Date getTime() {
+        return time;
+    }
+
+    // Insert the appointment and return the apID the database gave it, in the same round trip
+    public int saveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Appointments VALUES (? , ?, ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setInt(1, this.apID);
-            statement.setString(2, this.cUsername);
-            statement.setString(3, this.pUsername);
-            statement.setString(4, this.vName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+        String addAppointment = "INSERT INTO Appointments (cUsername, pUsername, vName, Time) " +
+                "OUTPUT inserted.apID VALUES (?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addAppointment)) {
+            statement.setString(1, this.cUsername);
+            statement.setString(2, this.pUsername);
+            statement.setString(3, this.vName);
+            statement.setDate(4, this.time);
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            this.apID = resultSet.getInt("apID");
+            return this.apID;
         } finally {
             cm.closeConnection();
         }
     }
 
     public static class AppointmentBuilder {
-        private final int apID;
         private final String cUsername;
         private final String pUsername;
         private final String vName;
+        private final Date time;
 
-        public AppointmentBuilder(int apID, String cUsername, String pUsername, String vName) {
-            this.apID = apID;
+        public AppointmentBuilder(String cUsername, String pUsername, String vName, Date time) {
             this.cUsername = cUsername;
             this.pUsername = pUsername;
             this.vName = vName;
+            this.time = time;
         }
 
         public Appointment build() {
@@ -84,21 +94,18 @@ public class Appointment {
         private String cUsername;
         private String pUsername;
         private String vName;
+        private Date time;
 
-        public AppointmentGetter(int apID, String cUsername, String pUsername, String vName) {
+        public AppointmentGetter(int apID) {
             this.apID = apID;
-            this.cUsername = cUsername;
-            this.pUsername = pUsername;
-            this.vName = vName;
         }
 
         public Appointment get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getCaregiver = "SELECT apID, cUsername, pUsername, vName FROM Appointments WHERE apID = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+            String getAppointment = "SELECT apID, cUsername, pUsername, vName, Time FROM Appointments WHERE apID = ?";
+            try (PreparedStatement statement = con.prepareStatement(getAppointment)) {
                 statement.setInt(1, this.apID);
                 ResultSet resultSet = statement.executeQuery();
 
@@ -107,13 +114,12 @@ public class Appointment {
                     this.cUsername = resultSet.getString("cUsername");
                     this.pUsername = resultSet.getString("pUsername");
                     this.vName = resultSet.getString("vName");
+                    this.time = resultSet.getDate("Time");
                     return new Appointment(this);
                 }
 
                 return null;
 
-            } catch (SQLException e) {
-                throw new SQLException();
             } finally {
                 cm.closeConnection();
             }
@@ -1,26 +1,32 @@
 package scheduler.model;
 
+import scheduler.cache.AvailabilityCache;
+import scheduler.cache.UsernameFilter;
 import scheduler.db.ConnectionManager;
+import scheduler.service.CredentialService;
 import scheduler.util.Util;
 
 import java.sql.*;
-import java.util.Arrays;
+import java.util.List;
 
 public class Caregiver {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final int iterations;
 
     private Caregiver(CaregiverBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.iterations = builder.iterations;
     }
 
     private Caregiver(CaregiverGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.iterations = getter.iterations;
     }
 
     // Getters
@@ -36,19 +42,22 @@ public class Caregiver {
         return hash;
     }
 
+    public int getIterations() {
+        return iterations;
+    }
+
     public void saveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+        String addCaregiver = "INSERT INTO Caregivers (Username, Salt, Hash, Iterations) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addCaregiver)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
+            statement.setInt(4, this.iterations);
             statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            UsernameFilter.getCaregivers().add(this.username);
         } finally {
             cm.closeConnection();
         }
@@ -59,13 +68,44 @@ public class Caregiver {
         Connection con = cm.createConnection();
 
         String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
             statement.setDate(1, d);
             statement.setString(2, this.username);
             statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            AvailabilityCache.getInstance().addCaregiver(d, this.username);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Upload many dates in one transaction, dates already uploaded are skipped. Returns how many were inserted.
+    public int uploadAvailability(List<Date> dates) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addAvailability = "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)";
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+            con.setAutoCommit(false);
+            for (Date d : dates) {
+                statement.setDate(1, d);
+                statement.setString(2, this.username);
+                statement.setDate(3, d);
+                statement.setString(4, this.username);
+                statement.addBatch();
+            }
+            int[] counts = statement.executeBatch();
+            con.commit();
+
+            int inserted = 0;
+            for (int i = 0; i < counts.length; i++) {
+                // a driver that cannot report per-row counts returns SUCCESS_NO_INFO, count those as inserted
+                if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                    inserted++;
+                    AvailabilityCache.getInstance().addCaregiver(dates.get(i), this.username);
+                }
+            }
+            return inserted;
         } finally {
             cm.closeConnection();
         }
@@ -75,11 +115,17 @@ public class Caregiver {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final int iterations;
 
         public CaregiverBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, Util.HASH_STRENGTH);
+        }
+
+        public CaregiverBuilder(String username, byte[] salt, byte[] hash, int iterations) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.iterations = iterations;
         }
 
         public Caregiver build() {
@@ -92,6 +138,7 @@ public class Caregiver {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private int iterations;
 
         public CaregiverGetter(String username, String password) {
             this.username = username;
@@ -102,29 +149,62 @@ public class Caregiver {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+            String getCaregiver = "SELECT Salt, Hash, Iterations FROM Caregivers WHERE Username = ?";
+            byte[] salt;
+            byte[] hash;
+            int iterations;
+            try (PreparedStatement statement = con.prepareStatement(getCaregiver)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
+                if (!resultSet.next()) {
+                    return null;
                 }
+                salt = resultSet.getBytes("Salt");
+                // we need to call Util.trim() to get rid of the paddings,
+                // try to remove the use of Util.trim() and you'll see :)
+                hash = Util.trim(resultSet.getBytes("Hash"));
+                iterations = resultSet.getInt("Iterations");
+            } finally {
+                // give the connection back before hashing, a login burst should not drain the pool
+                cm.closeConnection();
+            }
+
+            // check if the password matches, on the credential service's bounded worker pool
+            CredentialService credentials = CredentialService.getInstance();
+            if (!credentials.verify(password, salt, hash, iterations)) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
+            }
+            // the stored hash is weaker than we hash with today, upgrade it now that we know the password
+            if (credentials.needsRehash(iterations)) {
+                byte[] newSalt = credentials.newSalt();
+                byte[] newHash = credentials.hash(password, newSalt);
+                try {
+                    rehash(newSalt, newHash, credentials.getIterations());
+                    salt = newSalt;
+                    hash = newHash;
+                    iterations = credentials.getIterations();
+                } catch (SQLException e) {
+                    // the password was right, keep the old hash and upgrade it on a later login
+                    e.printStackTrace();
+                }
+            }
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+            return new Caregiver(this);
+        }
+
+        private void rehash(byte[] salt, byte[] hash, int iterations) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String updateHash = "UPDATE Caregivers SET Salt = ?, Hash = ?, Iterations = ? WHERE Username = ?";
+            try (PreparedStatement statement = con.prepareStatement(updateHash)) {
+                statement.setBytes(1, salt);
+                statement.setBytes(2, hash);
+                statement.setInt(3, iterations);
+                statement.setString(4, this.username);
+                statement.executeUpdate();
             } finally {
                 cm.closeConnection();
             }
@@ -1,27 +1,31 @@
 package scheduler.model;
 
+import scheduler.cache.UsernameFilter;
 import scheduler.db.ConnectionManager;
+import scheduler.service.CredentialService;
 import scheduler.util.Util;
 
 import java.sql.*;
-import java.util.Arrays;
 
 public class Patient
 {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final int iterations;
 
     private Patient(Patient.PatientBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.iterations = builder.iterations;
     }
 
     private Patient(Patient.PatientGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.iterations = getter.iterations;
     }
 
     // Getters
@@ -38,19 +42,22 @@ public class Patient
         return hash;
     }
 
+    public int getIterations() {
+        return iterations;
+    }
+
     public void saveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+        String addCaregiver = "INSERT INTO Patients (Username, Salt, Hash, Iterations) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addCaregiver)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
+            statement.setInt(4, this.iterations);
             statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            UsernameFilter.getPatients().add(this.username);
         } finally {
             cm.closeConnection();
         }
@@ -60,11 +67,17 @@ public class Patient
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final int iterations;
 
         public PatientBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, Util.HASH_STRENGTH);
+        }
+
+        public PatientBuilder(String username, byte[] salt, byte[] hash, int iterations) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.iterations = iterations;
         }
 
         public Patient build() {
@@ -77,6 +90,7 @@ public class Patient
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private int iterations;
 
         public PatientGetter(String username, String password) {
             this.username = username;
@@ -87,29 +101,62 @@ public class Patient
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getPatient = "SELECT salt, hash FROM Patients WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+            String getPatient = "SELECT Salt, Hash, Iterations FROM Patients WHERE Username = ?";
+            byte[] salt;
+            byte[] hash;
+            int iterations;
+            try (PreparedStatement statement = con.prepareStatement(getPatient)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
+                if (!resultSet.next()) {
+                    return null;
                 }
+                salt = resultSet.getBytes("Salt");
+                // we need to call Util.trim() to get rid of the paddings,
+                // try to remove the use of Util.trim() and you'll see :)
+                hash = Util.trim(resultSet.getBytes("Hash"));
+                iterations = resultSet.getInt("Iterations");
+            } finally {
+                // give the connection back before hashing, a login burst should not drain the pool
+                cm.closeConnection();
+            }
+
+            // check if the password matches, on the credential service's bounded worker pool
+            CredentialService credentials = CredentialService.getInstance();
+            if (!credentials.verify(password, salt, hash, iterations)) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
+            }
+            // the stored hash is weaker than we hash with today, upgrade it now that we know the password
+            if (credentials.needsRehash(iterations)) {
+                byte[] newSalt = credentials.newSalt();
+                byte[] newHash = credentials.hash(password, newSalt);
+                try {
+                    rehash(newSalt, newHash, credentials.getIterations());
+                    salt = newSalt;
+                    hash = newHash;
+                    iterations = credentials.getIterations();
+                } catch (SQLException e) {
+                    // the password was right, keep the old hash and upgrade it on a later login
+                    e.printStackTrace();
+                }
+            }
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+            return new Patient(this);
+        }
+
+        private void rehash(byte[] salt, byte[] hash, int iterations) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String updateHash = "UPDATE Patients SET Salt = ?, Hash = ?, Iterations = ? WHERE Username = ?";
+            try (PreparedStatement statement = con.prepareStatement(updateHash)) {
+                statement.setBytes(1, salt);
+                statement.setBytes(2, hash);
+                statement.setInt(3, iterations);
+                statement.setString(4, this.username);
+                statement.executeUpdate();
             } finally {
                 cm.closeConnection();
             }
@@ -1,6 +1,9 @@
 package scheduler.model;
 
+import scheduler.cache.AvailabilityCache;
 import scheduler.db.ConnectionManager;
+import scheduler.service.DoseShards;
+import scheduler.service.InventoryService;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -34,62 +37,55 @@ public class Vaccine {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
+        String addVaccine = "INSERT INTO Vaccines (Name, Doses) VALUES (?, 0)";
+        try (PreparedStatement statement = con.prepareStatement(addVaccine);
+             PreparedStatement stock = con.prepareStatement(DoseShards.addToShard)) {
+            con.setAutoCommit(false);
             statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
             statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            DoseShards.addStock(stock, this.vaccineName, this.availableDoses);
+            stock.executeBatch();
+            con.commit();
+            AvailabilityCache.getInstance().invalidateStock();
         } finally {
             cm.closeConnection();
         }
     }
 
-    // Increment the available doses
+    // Increment the available doses, the database catches up on the inventory service's next flush
     public void increaseAvailableDoses(int num) throws SQLException {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
         this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        InventoryService.getInstance().apply(this.vaccineName, num);
+        AvailabilityCache.getInstance().adjustStock(this.vaccineName, num);
     }
 
-    // Decrement the available doses
+    // Decrement the available doses right away, off the fullest shards, refused if the database has too few
     public void decreaseAvailableDoses(int num) throws SQLException {
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
         if (this.availableDoses - num < 0) {
             throw new IllegalArgumentException("Not enough available doses!");
         }
-        this.availableDoses -= num;
+        // doses added moments ago may only be in the inventory service's counters so far
+        if (InventoryService.getInstance().getPending(this.vaccineName) > 0) {
+            InventoryService.getInstance().flush();
+        }
+
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            if (!DoseShards.removeDoses(con, this.vaccineName, num)) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
         } finally {
             cm.closeConnection();
         }
+        this.availableDoses -= num;
+        AvailabilityCache.getInstance().adjustStock(this.vaccineName, -num);
     }
 
     @Override
@@ -126,18 +122,17 @@ public class Vaccine {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
+            String getVaccine = DoseShards.totals + "WHERE v.Name = ? GROUP BY v.Name";
+            try (PreparedStatement statement = con.prepareStatement(getVaccine)) {
                 statement.setString(1, this.vaccineName);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
+                    // include dose changes that are still waiting to be flushed
+                    this.availableDoses = resultSet.getInt("Doses")
+                            + InventoryService.getInstance().getPending(this.vaccineName);
                     return new Vaccine(this);
                 }
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
             } finally {
                 cm.closeConnection();
             }
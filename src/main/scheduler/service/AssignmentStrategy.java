@@ -0,0 +1,102 @@
+package scheduler.service;
+
+import scheduler.cache.AvailabilityCache;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which of the caregivers free on a date a reservation should try to claim first.
+ *
+ * The strategy only names a preference from the cached availability; the reservation batch claims
+ * that caregiver if they are still free and otherwise falls back to the first free caregiver by
+ * username, so a stale cache never fails a booking.
+ */
+public interface AssignmentStrategy {
+
+    // The caregiver to try first, or null to take the first free caregiver by username
+    String choose(Date date) throws SQLException;
+
+    // alphabetical, least_loaded, round_robin or random
+    static AssignmentStrategy named(String name) {
+        if (name == null || name.equals("alphabetical")) {
+            return new Alphabetical();
+        } else if (name.equals("least_loaded")) {
+            return new LeastLoaded();
+        } else if (name.equals("round_robin")) {
+            return new RoundRobin();
+        } else if (name.equals("random")) {
+            return new Random();
+        }
+        throw new IllegalArgumentException("Unknown assignment strategy " + name);
+    }
+
+    // The strategy the environment variable names, alphabetical when it is unset or unknown
+    static AssignmentStrategy fromEnv(String variable) {
+        String name = System.getenv(variable);
+        try {
+            return named(name == null || name.isEmpty() ? null : name.trim());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid value for " + variable + ": " + name);
+            return new Alphabetical();
+        }
+    }
+
+    // The behavior reserve always had: the alphabetically first free caregiver
+    class Alphabetical implements AssignmentStrategy {
+        @Override
+        public String choose(Date date) {
+            return null;
+        }
+    }
+
+    // The free caregiver with the fewest appointments, ties go to the alphabetically first
+    class LeastLoaded implements AssignmentStrategy {
+        @Override
+        public String choose(Date date) throws SQLException {
+            CaregiverLoad load = CaregiverLoad.getInstance();
+            String chosen = null;
+            int chosenLoad = Integer.MAX_VALUE;
+            for (String caregiver : AvailabilityCache.getInstance().getCaregivers(date)) {
+                int appointments = load.get(caregiver);
+                if (appointments < chosenLoad) {
+                    chosen = caregiver;
+                    chosenLoad = appointments;
+                }
+            }
+            return chosen;
+        }
+    }
+
+    // Takes turns through the free caregivers of the date
+    class RoundRobin implements AssignmentStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public String choose(Date date) throws SQLException {
+            SortedSet<String> available = AvailabilityCache.getInstance().getCaregivers(date);
+            if (available.isEmpty()) {
+                return null;
+            }
+            List<String> caregivers = new ArrayList<>(available);
+            return caregivers.get(Math.floorMod(next.getAndIncrement(), caregivers.size()));
+        }
+    }
+
+    class Random implements AssignmentStrategy {
+        @Override
+        public String choose(Date date) throws SQLException {
+            SortedSet<String> available = AvailabilityCache.getInstance().getCaregivers(date);
+            if (available.isEmpty()) {
+                return null;
+            }
+            List<String> caregivers = new ArrayList<>(available);
+            return caregivers.get(ThreadLocalRandom.current().nextInt(caregivers.size()));
+        }
+    }
+}
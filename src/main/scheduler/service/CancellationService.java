@@ -0,0 +1,209 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancels appointments as compensating transactions of a reservation.
+ *
+ * cancelAsPatient() and cancelAsCaregiver() undo one booking in one T-SQL batch: they delete the
+ * appointment if it is the user's under the role they are logged in as, give the caregiver their
+ * availability back and return the dose. cancelDay() handles a caregiver who cannot work on a
+ * date: in one set-based batch it drops their availability, pairs their appointments with the other
+ * caregivers still free that day and moves them over, and cancels (returning the doses of) whatever
+ * could not be moved. Like reservations, each batch joins a transaction the caller already has open by
+ * rolling back to a savepoint instead.
+ */
+public class CancellationService {
+
+    // only the side of the appointment the user is logged in as may cancel it
+    private static final String cancelAsPatient = cancelBatch("pUsername");
+    private static final String cancelAsCaregiver = cancelBatch("cUsername");
+
+    private static final String cancelDayBatch =
+            "DECLARE @date date = ?, @caregiver varchar(255) = ?, @shard int = ?; " +
+            "DECLARE @moves TABLE (apID int, Username varchar(255)); " +
+            "DECLARE @cancelled TABLE (apID int, pUsername varchar(255), vName varchar(255)); " +
+            "DECLARE @outer int = @@TRANCOUNT; " +
+            "IF @outer = 0 BEGIN SET XACT_ABORT ON; BEGIN TRANSACTION; END ELSE BEGIN SAVE TRANSACTION cancelDay; END; " +
+            "DELETE FROM Availabilities WHERE Time = @date AND Username = @caregiver; " +
+            // the n-th affected appointment goes to the n-th caregiver still free that day
+            "WITH affected AS (SELECT apID, ROW_NUMBER() OVER (ORDER BY apID) AS n FROM Appointments WITH (UPDLOCK) " +
+            "                  WHERE Time = @date AND cUsername = @caregiver), " +
+            "     available AS (SELECT Username, ROW_NUMBER() OVER (ORDER BY Username) AS n " +
+            "                  FROM Availabilities WITH (UPDLOCK, READPAST) WHERE Time = @date) " +
+            "INSERT INTO @moves (apID, Username) " +
+            "SELECT affected.apID, available.Username FROM affected JOIN available ON available.n = affected.n; " +
+            "DELETE a FROM Availabilities a JOIN @moves m ON a.Time = @date AND a.Username = m.Username; " +
+            "UPDATE ap SET cUsername = m.Username FROM Appointments ap JOIN @moves m ON ap.apID = m.apID; " +
+            "DELETE FROM Appointments OUTPUT deleted.apID, deleted.pUsername, deleted.vName INTO @cancelled " +
+            "WHERE Time = @date AND cUsername = @caregiver; " +
+            returnDoses("SELECT vName AS Name, @shard AS Shard, COUNT(*) AS Doses FROM @cancelled GROUP BY vName") +
+            "IF @outer = 0 BEGIN COMMIT TRANSACTION; END; " +
+            "SELECT m.apID, ap.pUsername, ap.vName, m.Username AS Caregiver FROM @moves m " +
+            "JOIN Appointments ap ON ap.apID = m.apID " +
+            "UNION ALL " +
+            "SELECT apID, pUsername, vName, CAST(NULL AS varchar(255)) FROM @cancelled " +
+            "ORDER BY apID;";
+
+    // Undo one booking of the user's, matched on the given column of the appointment
+    private static String cancelBatch(String userColumn) {
+        return "DECLARE @apID int = ?, @user varchar(255) = ?, @shard int = ?; " +
+               "DECLARE @cancelled TABLE (cUsername varchar(255), pUsername varchar(255), vName varchar(255), Time date); " +
+               "DECLARE @outer int = @@TRANCOUNT; " +
+               "IF @outer = 0 BEGIN SET XACT_ABORT ON; BEGIN TRANSACTION; END ELSE BEGIN SAVE TRANSACTION cancel; END; " +
+               "DELETE FROM Appointments " +
+               "OUTPUT deleted.cUsername, deleted.pUsername, deleted.vName, deleted.Time INTO @cancelled " +
+               "WHERE apID = @apID AND " + userColumn + " = @user; " +
+               "IF NOT EXISTS (SELECT 1 FROM @cancelled) BEGIN " +
+               "    IF @outer = 0 BEGIN ROLLBACK TRANSACTION; END ELSE BEGIN ROLLBACK TRANSACTION cancel; END; " +
+               "    SELECT cUsername, pUsername, vName, Time FROM @cancelled; " +
+               "    RETURN; " +
+               "END; " +
+               "INSERT INTO Availabilities (Time, Username) " +
+               "SELECT c.Time, c.cUsername FROM @cancelled c " +
+               "WHERE NOT EXISTS (SELECT 1 FROM Availabilities a WHERE a.Time = c.Time AND a.Username = c.cUsername); " +
+               returnDoses("SELECT vName AS Name, @shard AS Shard, 1 AS Doses FROM @cancelled") +
+               "IF @outer = 0 BEGIN COMMIT TRANSACTION; END; " +
+               "SELECT cUsername, pUsername, vName, Time FROM @cancelled;";
+    }
+
+    // Put the returned doses back on a random shard, creating it if the vaccine never had one there
+    private static String returnDoses(String returned) {
+        return "MERGE VaccineShards WITH (HOLDLOCK) AS s USING (" + returned + ") AS d " +
+               "ON s.Name = d.Name AND s.Shard = d.Shard " +
+               "WHEN MATCHED THEN UPDATE SET Doses = s.Doses + d.Doses " +
+               "WHEN NOT MATCHED THEN INSERT (Name, Shard, Doses) VALUES (d.Name, d.Shard, d.Doses); ";
+    }
+
+    // Cancel the appointment on behalf of its patient, null if it is not the patient's
+    public Cancellation cancelAsPatient(int apID, String patient) throws SQLException {
+        return cancel(cancelAsPatient, apID, patient);
+    }
+
+    // Cancel the appointment on behalf of its caregiver, null if it is not the caregiver's
+    public Cancellation cancelAsCaregiver(int apID, String caregiver) throws SQLException {
+        return cancel(cancelAsCaregiver, apID, caregiver);
+    }
+
+    private static Cancellation cancel(String batch, int apID, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(batch)) {
+            statement.setInt(1, apID);
+            statement.setString(2, username);
+            statement.setInt(3, DoseShards.pick());
+            Cancellation cancellation = null;
+            try (ResultSet resultSet = results(statement)) {
+                if (resultSet.next()) {
+                    cancellation = new Cancellation(apID, resultSet.getString("pUsername"),
+                            resultSet.getString("vName"), resultSet.getString("cUsername"), resultSet.getDate("Time"));
+                }
+            }
+            drain(statement);
+            if (cancellation != null) {
+                CaregiverLoad.getInstance().add(cancellation.getCaregiver(), -1);
+            }
+            return cancellation;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Take the caregiver off the date, moving their appointments to free caregivers where possible
+    public List<Cancellation> cancelDay(Date date, String caregiver) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(cancelDayBatch)) {
+            statement.setDate(1, date);
+            statement.setString(2, caregiver);
+            statement.setInt(3, DoseShards.pick());
+            List<Cancellation> affected = new ArrayList<>();
+            try (ResultSet resultSet = results(statement)) {
+                while (resultSet.next()) {
+                    affected.add(new Cancellation(resultSet.getInt("apID"), resultSet.getString("pUsername"),
+                            resultSet.getString("vName"), resultSet.getString("Caregiver"), date));
+                }
+            }
+            drain(statement);
+            CaregiverLoad load = CaregiverLoad.getInstance();
+            for (Cancellation cancellation : affected) {
+                load.add(caregiver, -1);
+                if (cancellation.isMoved()) {
+                    load.add(cancellation.getCaregiver(), 1);
+                }
+            }
+            return affected;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Skip the update counts of the batch's writes until the result rows
+    private static ResultSet results(PreparedStatement statement) throws SQLException {
+        boolean isResultSet = statement.execute();
+        while (!isResultSet && statement.getUpdateCount() != -1) {
+            isResultSet = statement.getMoreResults();
+        }
+        if (!isResultSet) {
+            throw new SQLException("Cancellation batch returned no result");
+        }
+        return statement.getResultSet();
+    }
+
+    // Read past the rest of the batch so an error from the COMMIT is not lost
+    private static void drain(PreparedStatement statement) throws SQLException {
+        while (statement.getMoreResults() || statement.getUpdateCount() != -1) {
+            // nothing to read
+        }
+    }
+
+    public static class Cancellation {
+        private final int apID;
+        private final String patient;
+        private final String vaccine;
+        private final String caregiver;
+        private final Date date;
+
+        private Cancellation(int apID, String patient, String vaccine, String caregiver, Date date) {
+            this.apID = apID;
+            this.patient = patient;
+            this.vaccine = vaccine;
+            this.caregiver = caregiver;
+            this.date = date;
+        }
+
+        public int getApID() {
+            return apID;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        // for cancel the caregiver who got the date back, for cancel_day the one the appointment moved
+        // to, or null if it had to be cancelled
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public boolean isMoved() {
+            return caregiver != null;
+        }
+    }
+}
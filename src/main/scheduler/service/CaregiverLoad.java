@@ -0,0 +1,71 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory count of the appointments each caregiver has, for the load-balancing assignment strategies.
+ *
+ * The counters are rebuilt from the Appointments table at startup, or the first time they are read if
+ * that failed, and kept up to date by this process's bookings and cancellations. A change counted
+ * while the rebuild runs is added on top of what the rebuild reads rather than overwritten by it.
+ * Bookings made by other processes only show up after a restart, which is fine for spreading work
+ * evenly.
+ */
+public class CaregiverLoad {
+
+    private static final CaregiverLoad instance = new CaregiverLoad();
+
+    private final ConcurrentHashMap<String, AtomicInteger> appointments = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+
+    public static CaregiverLoad getInstance() {
+        return instance;
+    }
+
+    public int get(String caregiver) throws SQLException {
+        load();
+        AtomicInteger count = appointments.get(caregiver);
+        return count == null ? 0 : count.get();
+    }
+
+    public void add(String caregiver, int delta) {
+        appointments.computeIfAbsent(caregiver, k -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    // Rebuild the counters from the Appointments table, once
+    public void load() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String countAppointments = "SELECT cUsername, COUNT(*) AS Appointments FROM Appointments GROUP BY cUsername";
+            Map<String, Integer> counted = new HashMap<>();
+            try (PreparedStatement statement = con.prepareStatement(countAppointments)) {
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    counted.put(resultSet.getString("cUsername"), resultSet.getInt("Appointments"));
+                }
+            } finally {
+                cm.closeConnection();
+            }
+            // merge, add() may have counted a booking or cancellation already
+            counted.forEach(this::add);
+            loaded = true;
+        }
+    }
+}
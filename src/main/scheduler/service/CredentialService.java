@@ -0,0 +1,94 @@
+package scheduler.service;
+
+import scheduler.util.Util;
+
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes and verifies passwords.
+ *
+ * PBKDF2 is deliberately slow, so verification runs on a small bounded worker pool: a burst of logins
+ * queues up behind PasswordWorkers threads instead of taking every core away from other commands, and
+ * past PasswordQueueSize waiting logins new ones are turned away. The cost for new hashes comes from
+ * PasswordHashIterations; a login whose stored hash used fewer iterations is reported by
+ * {@link #needsRehash(int)} so the caller can store a stronger one.
+ */
+public class CredentialService {
+
+    private static final CredentialService instance = new CredentialService(
+            Util.envInt("PasswordHashIterations", Util.HASH_STRENGTH),
+            Util.envInt("PasswordWorkers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Util.envInt("PasswordQueueSize", 256));
+
+    private final int iterations;
+    private final ThreadPoolExecutor workers;
+
+    public CredentialService(int iterations, int workerCount, int queueSize) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Need at least one iteration!");
+        }
+        this.iterations = iterations;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "credential-worker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    public static CredentialService getInstance() {
+        return instance;
+    }
+
+    // The iteration count used for every new hash
+    public int getIterations() {
+        return iterations;
+    }
+
+    public byte[] newSalt() {
+        return Util.generateSalt();
+    }
+
+    public byte[] hash(String password, byte[] salt) {
+        return Util.generateHash(password, salt, iterations);
+    }
+
+    // Check a password against a stored hash on the worker pool, waiting for the result
+    public boolean verify(String password, byte[] salt, byte[] storedHash, int storedIterations) throws SQLException {
+        Future<Boolean> result;
+        try {
+            result = workers.submit(() -> matches(password, salt, storedHash, storedIterations));
+        } catch (RejectedExecutionException e) {
+            throw new SQLException("Too many logins in progress, please try again later");
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while checking the password", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public boolean needsRehash(int storedIterations) {
+        return storedIterations < iterations;
+    }
+
+    private static boolean matches(String password, byte[] salt, byte[] storedHash, int storedIterations) {
+        byte[] calculatedHash = Util.generateHash(password, salt, storedIterations);
+        // stored hashes are zero padded to the column width, so compare both without the padding
+        return MessageDigest.isEqual(Util.trim(storedHash), Util.trim(calculatedHash));
+    }
+}
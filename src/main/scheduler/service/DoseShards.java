@@ -0,0 +1,129 @@
+package scheduler.service;
+
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Where dose stock lives: split over up to VaccineShards rows per vaccine in the VaccineShards table,
+ * so bookings of a popular vaccine do not all queue on one row lock.
+ *
+ * A vaccine's stock is the sum of its shards. Added doses go to a random shard, and the row is
+ * created on first use. A booking takes its dose from a random shard, skips to the fullest one not
+ * locked by another booking when that shard is empty or busy, and only waits for a lock when every
+ * shard that still has stock is taken. Removing several doses drains the fullest shards first and
+ * is refused when the vaccine has fewer, so no shard ever goes below zero and the total never
+ * promises a dose a booking cannot find. Vaccines.Doses is no longer read or written.
+ */
+public class DoseShards {
+
+    private static final int shards = Math.max(1, Util.envInt("VaccineShards", 8));
+
+    // add ? doses to shard ? of vaccine ?, creating the shard if it does not exist yet
+    public static final String addToShard =
+            "MERGE VaccineShards WITH (HOLDLOCK) AS s " +
+            "USING (SELECT ? AS Name, ? AS Shard, ? AS Doses) AS d ON s.Name = d.Name AND s.Shard = d.Shard " +
+            "WHEN MATCHED THEN UPDATE SET Doses = s.Doses + d.Doses " +
+            "WHEN NOT MATCHED THEN INSERT (Name, Shard, Doses) VALUES (d.Name, d.Shard, d.Doses);";
+
+    // take @need doses of @vaccine off the fullest shards first, or none if there are fewer than that
+    private static final String removeBatch =
+            "DECLARE @vaccine varchar(255) = ?, @need int = ?; " +
+            "DECLARE @take TABLE (Shard int, Take int); " +
+            "DECLARE @outer int = @@TRANCOUNT; " +
+            "IF @outer = 0 BEGIN SET XACT_ABORT ON; BEGIN TRANSACTION; END ELSE BEGIN SAVE TRANSACTION removeDoses; END; " +
+            "INSERT INTO @take (Shard, Take) " +
+            "SELECT Shard, CASE WHEN Running <= @need THEN Doses ELSE @need - (Running - Doses) END FROM ( " +
+            "    SELECT Shard, Doses, SUM(Doses) OVER (ORDER BY Doses DESC, Shard ROWS UNBOUNDED PRECEDING) AS Running " +
+            "    FROM VaccineShards WITH (UPDLOCK, HOLDLOCK) WHERE Name = @vaccine AND Doses > 0) AS stocked " +
+            "WHERE Running - Doses < @need; " +
+            "IF (SELECT ISNULL(SUM(Take), 0) FROM @take) < @need BEGIN " +
+            "    IF @outer = 0 BEGIN ROLLBACK TRANSACTION; END ELSE BEGIN ROLLBACK TRANSACTION removeDoses; END; " +
+            "    SELECT 0 AS Removed; " +
+            "    RETURN; " +
+            "END; " +
+            "UPDATE s SET Doses = s.Doses - t.Take FROM VaccineShards s JOIN @take t ON s.Name = @vaccine AND s.Shard = t.Shard; " +
+            "IF @outer = 0 BEGIN COMMIT TRANSACTION; END; " +
+            "SELECT 1 AS Removed;";
+
+    // every vaccine with the sum of its shards
+    public static final String totals =
+            "SELECT v.Name, ISNULL(SUM(s.Doses), 0) AS Doses FROM Vaccines v " +
+            "LEFT JOIN VaccineShards s ON s.Name = v.Name ";
+
+    public static int getShards() {
+        return shards;
+    }
+
+    public static int pick() {
+        return ThreadLocalRandom.current().nextInt(shards);
+    }
+
+    // Queue added doses on a random shard, the statement must be prepared from addToShard. Doses are
+    // taken away with removeDoses(), a negative delta could take one shard below zero.
+    public static void addDelta(PreparedStatement statement, String vaccine, int delta) throws SQLException {
+        if (delta < 0) {
+            throw new IllegalArgumentException("Remove doses with removeDoses, not a negative delta");
+        }
+        statement.setString(1, vaccine);
+        statement.setInt(2, pick());
+        statement.setInt(3, delta);
+        statement.addBatch();
+    }
+
+    // Queue a new vaccine's stock spread evenly over the shards
+    public static void addStock(PreparedStatement statement, String vaccine, int doses) throws SQLException {
+        for (int shard = 0; shard < shards; shard++) {
+            statement.setString(1, vaccine);
+            statement.setInt(2, shard);
+            statement.setInt(3, doses / shards + (shard < doses % shards ? 1 : 0));
+            statement.addBatch();
+        }
+    }
+
+    // Take doses off the vaccine's shards, returns false and changes nothing if it has fewer than that
+    public static boolean removeDoses(Connection con, String vaccine, int doses) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(removeBatch)) {
+            statement.setString(1, vaccine);
+            statement.setInt(2, doses);
+
+            // skip the update counts of the batch's writes until its answer
+            boolean isResultSet = statement.execute();
+            while (!isResultSet && statement.getUpdateCount() != -1) {
+                isResultSet = statement.getMoreResults();
+            }
+            if (!isResultSet) {
+                throw new SQLException("Dose removal returned no result");
+            }
+            try (ResultSet resultSet = statement.getResultSet()) {
+                return resultSet.next() && resultSet.getInt("Removed") == 1;
+            }
+        }
+    }
+
+    // T-SQL taking one dose of the vaccine in @vaccine, sets @taken to 1 if it got one and @shard to
+    // where it came from. The batch declares @shard int, @taken int and binds @shards.
+    static String takeDose() {
+        return "SET @shard = ABS(CHECKSUM(NEWID())) % @shards; " +
+               "UPDATE VaccineShards WITH (ROWLOCK, READPAST) SET Doses = Doses - 1 " +
+               "WHERE Name = @vaccine AND Shard = @shard AND Doses > 0; " +
+               "SET @taken = @@ROWCOUNT; " +
+               "IF @taken = 0 BEGIN " +
+               "    WITH fullest AS (SELECT TOP (1) Shard, Doses FROM VaccineShards WITH (ROWLOCK, UPDLOCK, READPAST) " +
+               "                     WHERE Name = @vaccine AND Doses > 0 ORDER BY Doses DESC) " +
+               "    UPDATE fullest SET @shard = Shard, Doses = Doses - 1; " +
+               "    SET @taken = @@ROWCOUNT; " +
+               "END; " +
+               // every shard with stock is locked by a booking that may still roll back, wait for one
+               "IF @taken = 0 BEGIN " +
+               "    WITH stocked AS (SELECT TOP (1) Shard, Doses FROM VaccineShards WITH (ROWLOCK, UPDLOCK) " +
+               "                     WHERE Name = @vaccine AND Doses > 0) " +
+               "    UPDATE stocked SET @shard = Shard, Doses = Doses - 1; " +
+               "    SET @taken = @@ROWCOUNT; " +
+               "END; ";
+    }
+}
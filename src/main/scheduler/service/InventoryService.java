@@ -0,0 +1,162 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind dose inventory.
+ *
+ * Added doses are applied to lock-free per-vaccine counters right away and flushed to a random
+ * {@link DoseShards} row as relative {@code Doses = Doses + ?} updates, so concurrent add_doses calls
+ * never lose an update. Deltas for the same vaccine coalesce between flushes, and each flush writes all of them in
+ * one JDBC batch. The database lags the counters by at most InventoryMaxStalenessMillis; shutdown()
+ * (and a JVM shutdown hook) flush whatever is still pending. With the write journal enabled the changes
+ * go to the journal instead, which survives a crash, and are applied from there.
+ */
+public class InventoryService {
+
+    private static final InventoryService instance =
+            new InventoryService(Util.envInt("InventoryMaxStalenessMillis", 1000));
+
+    private final long maxStalenessMillis;
+    // doses added by this process that the database has not seen yet
+    private final ConcurrentHashMap<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private volatile boolean shutdown = false;
+    // whether the last background flush failed, only touched by the flusher thread
+    private boolean failing = false;
+
+    public InventoryService(long maxStalenessMillis) {
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "inventory-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, maxStalenessMillis, maxStalenessMillis,
+                TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "inventory-shutdown-flush"));
+    }
+
+    public static InventoryService getInstance() {
+        return instance;
+    }
+
+    // Record added doses, they reach the database on the next flush. Removing doses cannot wait for a
+    // flush to find out there are too few, it goes straight to DoseShards.removeDoses()
+    public void apply(String vaccine, int delta) throws SQLException {
+        if (delta < 0) {
+            throw new IllegalArgumentException("Only added doses are written behind");
+        }
+        if (shutdown) {
+            throw new IllegalStateException("Inventory service has been shut down");
+        }
+        WriteJournal journal = WriteJournal.getInstance();
+        if (journal.isEnabled()) {
+            journal.appendDoses(vaccine, delta);
+            return;
+        }
+        pending.computeIfAbsent(vaccine, k -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    // Doses applied to the counters but not yet written to the database
+    public int getPending(String vaccine) {
+        AtomicInteger delta = pending.get(vaccine);
+        return (delta == null ? 0 : delta.get()) + WriteJournal.getInstance().getPendingDoses(vaccine);
+    }
+
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    // Write every pending delta to the database in one batch, returns the number of vaccines updated
+    public int flush() throws SQLException {
+        WriteJournal.getInstance().flush();
+        synchronized (flushLock) {
+            List<String> names = new ArrayList<>();
+            List<Integer> deltas = new ArrayList<>();
+            for (Map.Entry<String, AtomicInteger> entry : pending.entrySet()) {
+                int delta = entry.getValue().get();
+                if (delta != 0) {
+                    names.add(entry.getKey());
+                    deltas.add(delta);
+                }
+            }
+            if (names.isEmpty()) {
+                return 0;
+            }
+
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createUnboundConnection();
+            try (PreparedStatement statement = con.prepareStatement(DoseShards.addToShard)) {
+                con.setAutoCommit(false);
+                for (int i = 0; i < names.size(); i++) {
+                    DoseShards.addDelta(statement, names.get(i), deltas.get(i));
+                }
+                statement.executeBatch();
+                con.commit();
+            } finally {
+                cm.closeConnection();
+            }
+
+            // only now take the flushed amounts off the counters: until then readers that add the
+            // pending delta to the stored value may briefly over-count, but never under-count
+            for (int i = 0; i < names.size(); i++) {
+                pending.get(names.get(i)).addAndGet(-deltas.get(i));
+            }
+            return names.size();
+        }
+    }
+
+    // Stop the background flusher and write out everything still pending
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(maxStalenessMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.out.println("Could not write pending dose changes to the database");
+            e.printStackTrace();
+        }
+    }
+
+    // Only the first failure and the recovery are logged, an outage would otherwise print every interval
+    private void flushQuietly() {
+        try {
+            flush();
+            if (failing) {
+                failing = false;
+                System.out.println("Dose changes are reaching the database again");
+            }
+        } catch (SQLException e) {
+            // the deltas are still pending, the next run tries again
+            if (!failing) {
+                failing = true;
+                System.out.println("Could not write dose changes to the database, retrying every "
+                        + maxStalenessMillis + " ms");
+                e.printStackTrace();
+            }
+        }
+    }
+}
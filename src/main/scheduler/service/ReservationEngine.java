@@ -0,0 +1,257 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Books an appointment in a single round trip.
+ *
+ * The whole reservation runs as one T-SQL batch inside one short transaction: it claims the first
+ * free caregiver for the date, or for the earliest date on or after a given one (skipping rows
+ * another reservation has already locked), takes one dose off one of the vaccine's
+ * {@link DoseShards} only if there is one left, and inserts the appointment, returning its apID.
+ * The patient's waitlist entries for the vaccine are removed in the same transaction.
+ * Which free caregiver gets the appointment is up to an {@link AssignmentStrategy}, alphabetical
+ * unless told otherwise. Deadlock victims are retried with jittered exponential backoff.
+ */
+public class ReservationEngine {
+
+    // SQL Server error code for "transaction was deadlocked ... and has been chosen as the deadlock victim"
+    private static final int DEADLOCK_VICTIM = 1205;
+
+    private static final int STATUS_BOOKED = 0;
+    private static final int STATUS_NO_CAREGIVER = 1;
+    private static final int STATUS_NO_DOSES = 2;
+
+    // reserve: claim a caregiver on exactly the given date
+    private static final String reserveBatch = batch("Time = @date");
+    // reserve_earliest: claim the first free caregiver on or after the given date, a seek on the (Time, Username) key
+    private static final String reserveEarliestBatch = batch("Time >= @date");
+
+    // When the caller already has a transaction open we only roll back to a savepoint,
+    // so a failed reservation never undoes the caller's earlier work. A transaction the batch opens
+    // itself runs with XACT_ABORT, so an error or a client timeout part way through rolls it back
+    // instead of leaving it open on the connection.
+    private static String batch(String claimedTime) {
+        String failed = " AS Status, CAST(NULL AS int) AS apID, CAST(NULL AS varchar(255)) AS Username, " +
+                "CAST(NULL AS date) AS Time; ";
+        return "DECLARE @date date = ?, @vaccine varchar(255) = ?, @patient varchar(255) = ?, @preferred varchar(255) = ?, " +
+               "        @shards int = ?; " +
+               "DECLARE @claimed TABLE (Time date, Username varchar(255)); " +
+               "DECLARE @shard int, @taken int; " +
+               "DECLARE @outer int = @@TRANCOUNT; " +
+               "IF @outer = 0 BEGIN SET XACT_ABORT ON; BEGIN TRANSACTION; END ELSE BEGIN SAVE TRANSACTION reserve; END; " +
+               // the caregiver the assignment strategy picked, if they are still free
+               "IF @preferred IS NOT NULL BEGIN " +
+               "    DELETE FROM Availabilities WITH (ROWLOCK, READPAST) " +
+               "    OUTPUT deleted.Time, deleted.Username INTO @claimed " +
+               "    WHERE Time = @date AND Username = @preferred; " +
+               "END; " +
+               "IF NOT EXISTS (SELECT 1 FROM @claimed) BEGIN " +
+               "    WITH nextFree AS (SELECT TOP (1) Time, Username FROM Availabilities WITH (ROWLOCK, UPDLOCK, READPAST) " +
+               "                      WHERE " + claimedTime + " ORDER BY Time, Username) " +
+               "    DELETE FROM nextFree OUTPUT deleted.Time, deleted.Username INTO @claimed; " +
+               "END; " +
+               "IF NOT EXISTS (SELECT 1 FROM @claimed) BEGIN " +
+               "    IF @outer = 0 BEGIN ROLLBACK TRANSACTION; END ELSE BEGIN ROLLBACK TRANSACTION reserve; END; " +
+               "    SELECT " + STATUS_NO_CAREGIVER + failed +
+               "    RETURN; " +
+               "END; " +
+               DoseShards.takeDose() +
+               "IF @taken = 0 BEGIN " +
+               "    IF @outer = 0 BEGIN ROLLBACK TRANSACTION; END ELSE BEGIN ROLLBACK TRANSACTION reserve; END; " +
+               "    SELECT " + STATUS_NO_DOSES + failed +
+               "    RETURN; " +
+               "END; " +
+               "INSERT INTO Appointments (cUsername, pUsername, vName, Time) " +
+               "OUTPUT " + STATUS_BOOKED + " AS Status, inserted.apID, inserted.cUsername AS Username, inserted.Time " +
+               "SELECT Username, @patient, @vaccine, Time FROM @claimed; " +
+               // booked directly, so the patient no longer waits for this vaccine
+               "DELETE FROM Waitlist WHERE pUsername = @patient AND vName = @vaccine; " +
+               "IF @outer = 0 BEGIN COMMIT TRANSACTION; END;";
+    }
+
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final AssignmentStrategy strategy;
+
+    public ReservationEngine() {
+        this(new AssignmentStrategy.Alphabetical());
+    }
+
+    public ReservationEngine(AssignmentStrategy strategy) {
+        this(5, 10, 500, strategy);
+    }
+
+    public ReservationEngine(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+        this(maxAttempts, baseBackoffMillis, maxBackoffMillis, new AssignmentStrategy.Alphabetical());
+    }
+
+    public ReservationEngine(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+                             AssignmentStrategy strategy) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Need at least one attempt!");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.strategy = strategy;
+    }
+
+    public Reservation reserve(Date date, String vaccine, String patient) throws SQLException {
+        // pick before borrowing, a cache miss in the strategy needs a connection of its own
+        return run(reserveBatch, date, strategy.choose(date), vaccine, patient);
+    }
+
+    // Book the earliest date on or after from that still has a free caregiver
+    public Reservation reserveEarliest(Date from, String vaccine, String patient) throws SQLException {
+        return run(reserveEarliestBatch, from, null, vaccine, patient);
+    }
+
+    // Reserve on a connection the caller owns. If the caller has a transaction open the
+    // reservation joins it, and is not retried on deadlock since the server already rolled it back.
+    public Reservation reserve(Connection con, Date date, String vaccine, String patient) throws SQLException {
+        return run(con, reserveBatch, date, strategy.choose(date), vaccine, patient);
+    }
+
+    public Reservation reserveEarliest(Connection con, Date from, String vaccine, String patient) throws SQLException {
+        return run(con, reserveEarliestBatch, from, null, vaccine, patient);
+    }
+
+    private Reservation run(String batch, Date date, String preferred, String vaccine, String patient)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            return run(con, batch, date, preferred, vaccine, patient);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Reservation run(Connection con, String batch, Date date, String preferred, String vaccine, String patient)
+            throws SQLException {
+        boolean retryable = con.getAutoCommit();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Reservation reservation = execute(con, batch, date, preferred, vaccine, patient);
+                if (reservation.isBooked()) {
+                    CaregiverLoad.getInstance().add(reservation.getCaregiver(), 1);
+                }
+                return reservation;
+            } catch (SQLException e) {
+                if (!retryable || e.getErrorCode() != DEADLOCK_VICTIM || attempt >= maxAttempts) {
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    private Reservation execute(Connection con, String batch, Date date, String preferred, String vaccine,
+                                String patient) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(batch)) {
+            statement.setDate(1, date);
+            statement.setString(2, vaccine);
+            statement.setString(3, patient);
+            statement.setString(4, preferred);
+            statement.setInt(5, DoseShards.getShards());
+
+            // skip the update counts of the DELETE/UPDATE until we reach the single status row
+            boolean isResultSet = statement.execute();
+            while (!isResultSet && statement.getUpdateCount() != -1) {
+                isResultSet = statement.getMoreResults();
+            }
+            if (!isResultSet) {
+                throw new SQLException("Reservation batch returned no status");
+            }
+            Reservation reservation;
+            try (ResultSet resultSet = statement.getResultSet()) {
+                if (!resultSet.next()) {
+                    throw new SQLException("Reservation batch returned no status");
+                }
+                int status = resultSet.getInt("Status");
+                if (status == STATUS_NO_CAREGIVER) {
+                    reservation = Reservation.noCaregiver();
+                } else if (status == STATUS_NO_DOSES) {
+                    reservation = Reservation.noDoses();
+                } else {
+                    reservation = Reservation.booked(resultSet.getInt("apID"), resultSet.getString("Username"),
+                            resultSet.getDate("Time"));
+                }
+            }
+            // drain the rest of the batch so an error from the COMMIT is not lost
+            while (statement.getMoreResults() || statement.getUpdateCount() != -1) {
+                // nothing to read
+            }
+            return reservation;
+        }
+    }
+
+    private void backoff(int attempt) throws SQLException {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 16));
+        long sleep = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying reservation", e);
+        }
+    }
+
+    public static class Reservation {
+        public enum Status { BOOKED, NO_CAREGIVER, NO_DOSES }
+
+        private final Status status;
+        private final int apID;
+        private final String caregiver;
+        private final Date date;
+
+        private Reservation(Status status, int apID, String caregiver, Date date) {
+            this.status = status;
+            this.apID = apID;
+            this.caregiver = caregiver;
+            this.date = date;
+        }
+
+        static Reservation booked(int apID, String caregiver, Date date) {
+            return new Reservation(Status.BOOKED, apID, caregiver, date);
+        }
+
+        static Reservation noCaregiver() {
+            return new Reservation(Status.NO_CAREGIVER, -1, null, null);
+        }
+
+        static Reservation noDoses() {
+            return new Reservation(Status.NO_DOSES, -1, null, null);
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isBooked() {
+            return status == Status.BOOKED;
+        }
+
+        public int getApID() {
+            return apID;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        // the date booked, which reserveEarliest picks
+        public Date getDate() {
+            return date;
+        }
+    }
+}
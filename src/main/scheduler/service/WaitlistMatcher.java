@@ -0,0 +1,268 @@
+package scheduler.service;
+
+import scheduler.cache.AvailabilityCache;
+import scheduler.db.ConnectionManager;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Books waitlisted patients as soon as capacity shows up.
+ *
+ * Patients who could not reserve queue up in the Waitlist table, for one date or for any date from
+ * today on. Whenever availability or doses are added, fire() schedules a match on a background
+ * thread; fires that arrive while one is already pending collapse into it. A match walks the queue in
+ * priority, then arrival, order and books every entry it can inside one T-SQL batch, committing each
+ * entry on its own and claiming caregivers the same way reservations do, so a burst of uploads costs
+ * one round trip instead of every waiting patient retrying reserve. An entry that fails is rolled back
+ * and left queued without holding up the rest. Booking the vaccine directly takes the patient off its
+ * waitlist, and an entry whose patient already has an upcoming appointment for the vaccine is dropped
+ * rather than booked.
+ */
+public class WaitlistMatcher {
+
+    private static final WaitlistMatcher instance = new WaitlistMatcher(Util.envInt("WaitlistMatchLimit", 1000));
+
+    private static final String enqueue =
+            "INSERT INTO Waitlist (pUsername, vName, Time) SELECT ?, ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Waitlist WHERE pUsername = ? AND vName = ? " +
+            "                  AND (Time = ? OR (Time IS NULL AND ? IS NULL)))";
+
+    // an entry without a date takes the earliest free caregiver from today on
+    private static final String matchBatch =
+            "DECLARE @today date = ?, @limit int = ?, @shards int = ?; " +
+            "DECLARE @matched TABLE (wID int, apID int, pUsername varchar(255), cUsername varchar(255), " +
+            "                        vName varchar(255), Time date); " +
+            "DECLARE @booked TABLE (wID int, apID int, pUsername varchar(255), cUsername varchar(255), " +
+            "                       vName varchar(255), Time date); " +
+            "DECLARE @claimed TABLE (Time date, Username varchar(255)); " +
+            "DECLARE @wID int, @patient varchar(255), @vaccine varchar(255), @date date, @shard int, @taken int; " +
+            "DECLARE @error nvarchar(2048); " +
+            "SET XACT_ABORT ON; " +
+            // a static cursor reads the queue up front, so deleting matched entries does not disturb it
+            "DECLARE queue CURSOR LOCAL STATIC READ_ONLY FOR " +
+            "    SELECT TOP (@limit) wID, pUsername, vName, Time FROM Waitlist " +
+            "    WHERE Time IS NULL OR Time >= @today ORDER BY Priority DESC, wID; " +
+            "OPEN queue; " +
+            "FETCH NEXT FROM queue INTO @wID, @patient, @vaccine, @date; " +
+            "WHILE @@FETCH_STATUS = 0 BEGIN " +
+            // one transaction per entry, so a long queue never holds its claimed rows until the end
+            "    BEGIN TRY " +
+            "        BEGIN TRANSACTION; " +
+            "        DELETE FROM @booked; " +
+            // booked since queueing, e.g. by an earlier entry of this batch, drop the entry instead of booking twice
+            "        IF EXISTS (SELECT 1 FROM Appointments WHERE pUsername = @patient AND vName = @vaccine AND Time >= @today) BEGIN " +
+            "            DELETE FROM Waitlist WHERE wID = @wID; " +
+            "            SET @taken = 0; " +
+            "        END ELSE BEGIN " +
+            "            " + DoseShards.takeDose() +
+            "        END; " +
+            "        IF @taken > 0 BEGIN " +
+            "            DELETE FROM @claimed; " +
+            "            WITH nextFree AS (SELECT TOP (1) Time, Username FROM Availabilities WITH (ROWLOCK, UPDLOCK, READPAST) " +
+            "                              WHERE Time >= ISNULL(@date, @today) AND Time <= ISNULL(@date, '9999-12-31') " +
+            "                              ORDER BY Time, Username) " +
+            "            DELETE FROM nextFree OUTPUT deleted.Time, deleted.Username INTO @claimed; " +
+            "            IF EXISTS (SELECT 1 FROM @claimed) BEGIN " +
+            "                INSERT INTO Appointments (cUsername, pUsername, vName, Time) " +
+            "                OUTPUT @wID, inserted.apID, inserted.pUsername, inserted.cUsername, inserted.vName, inserted.Time " +
+            "                INTO @booked " +
+            "                SELECT Username, @patient, @vaccine, Time FROM @claimed; " +
+            "                DELETE FROM Waitlist WHERE wID = @wID; " +
+            "            END ELSE BEGIN " +
+            // no caregiver for this entry, give the dose back for the ones behind it
+            "                UPDATE VaccineShards SET Doses = Doses + 1 WHERE Name = @vaccine AND Shard = @shard; " +
+            "            END; " +
+            "        END; " +
+            "        COMMIT TRANSACTION; " +
+            // table variables ignore rollbacks, only report a booking once it is committed
+            "        INSERT INTO @matched SELECT wID, apID, pUsername, cUsername, vName, Time FROM @booked; " +
+            "    END TRY " +
+            "    BEGIN CATCH " +
+            // the entry stays queued for the next match, the ones behind it still get their turn
+            "        IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION; " +
+            "        SET @error = ERROR_MESSAGE(); " +
+            "    END CATCH; " +
+            "    FETCH NEXT FROM queue INTO @wID, @patient, @vaccine, @date; " +
+            "END; " +
+            "CLOSE queue; " +
+            "DEALLOCATE queue; " +
+            "SELECT wID, apID, pUsername, cUsername, vName, Time FROM @matched ORDER BY apID; " +
+            // report the last failure after the bookings that did go through
+            "IF @error IS NOT NULL THROW 50000, @error, 1;";
+
+    private final int matchLimit;
+    private final ExecutorService matcher;
+    // true while a match is queued but has not started, later fires ride along with it
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    public WaitlistMatcher(int matchLimit) {
+        this.matchLimit = matchLimit;
+        this.matcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "waitlist-matcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static WaitlistMatcher getInstance() {
+        return instance;
+    }
+
+    // Queue the patient for the vaccine on the date, or on any date when it is null. Returns false if already queued.
+    public boolean enqueue(String patient, String vaccine, Date date) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        try (PreparedStatement statement = con.prepareStatement(enqueue)) {
+            statement.setString(1, patient);
+            statement.setString(2, vaccine);
+            statement.setDate(3, date);
+            statement.setString(4, patient);
+            statement.setString(5, vaccine);
+            statement.setDate(6, date);
+            statement.setDate(7, date);
+            return statement.executeUpdate() > 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Capacity was added: match the waitlist in the background
+    public void fire() {
+        if (pending.compareAndSet(false, true)) {
+            try {
+                matcher.execute(this::matchQuietly);
+            } catch (RejectedExecutionException e) {
+                // shut down, nothing will be matched any more
+                pending.set(false);
+            }
+        }
+    }
+
+    // Book every waitlisted patient that can be booked right now
+    public List<Match> match() throws SQLException {
+        // doses added moments ago may still be in the inventory service's counters
+        InventoryService.getInstance().flush();
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        List<Match> matches = new ArrayList<>();
+        SQLException failure = null;
+        try (PreparedStatement statement = con.prepareStatement(matchBatch)) {
+            statement.setDate(1, Date.valueOf(LocalDate.now()));
+            statement.setInt(2, matchLimit);
+            statement.setInt(3, DoseShards.getShards());
+
+            // skip the update counts of the loop's writes until the matched rows
+            boolean isResultSet = statement.execute();
+            while (!isResultSet && statement.getUpdateCount() != -1) {
+                isResultSet = statement.getMoreResults();
+            }
+            if (!isResultSet) {
+                throw new SQLException("Waitlist batch returned no result");
+            }
+            try (ResultSet resultSet = statement.getResultSet()) {
+                while (resultSet.next()) {
+                    matches.add(new Match(resultSet.getInt("wID"), resultSet.getInt("apID"),
+                            resultSet.getString("pUsername"), resultSet.getString("cUsername"),
+                            resultSet.getString("vName"), resultSet.getDate("Time")));
+                }
+            }
+            // an entry that failed comes after the rows, the bookings before it are committed all the same
+            try {
+                while (statement.getMoreResults() || statement.getUpdateCount() != -1) {
+                    // nothing to read
+                }
+            } catch (SQLException e) {
+                failure = e;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+
+        AvailabilityCache cache = AvailabilityCache.getInstance();
+        for (Match match : matches) {
+            cache.removeCaregiver(match.getDate(), match.getCaregiver());
+            cache.adjustStock(match.getVaccine(), -1);
+            CaregiverLoad.getInstance().add(match.getCaregiver(), 1);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return matches;
+    }
+
+    public void shutdown() {
+        matcher.shutdown();
+        try {
+            matcher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void matchQuietly() {
+        pending.set(false);
+        try {
+            match();
+        } catch (SQLException e) {
+            // the entries stay queued, the next capacity change tries again
+            e.printStackTrace();
+        }
+    }
+
+    public static class Match {
+        private final int wID;
+        private final int apID;
+        private final String patient;
+        private final String caregiver;
+        private final String vaccine;
+        private final Date date;
+
+        private Match(int wID, int apID, String patient, String caregiver, String vaccine, Date date) {
+            this.wID = wID;
+            this.apID = apID;
+            this.patient = patient;
+            this.caregiver = caregiver;
+            this.vaccine = vaccine;
+            this.date = date;
+        }
+
+        public int getWID() {
+            return wID;
+        }
+
+        public int getApID() {
+            return apID;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package scheduler.service;
+
+import scheduler.cache.AvailabilityCache;
+import scheduler.db.ConnectionManager;
+import scheduler.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal for writes that never conflict: uploaded availability and dose changes.
+ *
+ * With WriteJournal=1 these writes are appended to a local file and fsync'd, and the command is
+ * acknowledged without a round trip to the database. A background thread applies the journal every
+ * WriteJournalApplyMillis, all records since the last apply in one transaction. The transaction also
+ * records how far the journal has been applied in the WriteJournalOffsets table, so after a crash the
+ * journal is replayed from exactly that offset and no dose change is applied twice. Availability is
+ * inserted only if missing, so a date uploaded twice is not an error in this mode.
+ *
+ * Once everything is applied and the file has grown past a megabyte it is replaced by an empty one
+ * of the next generation; the generation in the file header tells a replay whether the stored offset
+ * still refers to this file. The header also holds a random id, created with the first file and kept
+ * across rotations, that names the journal's WriteJournalOffsets row, so instances on other hosts or
+ * with other journal files never read each other's offsets. Copying a journal file to a second
+ * running instance would share the id and is not supported.
+ *
+ * A record the database keeps rejecting must not hold back the ones behind it. Once an apply has
+ * failed WriteJournalApplyAttempts times in a row from the same offset, the next one applies the
+ * records one transaction each and moves any record that still fails into a .quarantine file next to
+ * the journal, with the error, for an operator to redo by hand.
+ */
+public class WriteJournal {
+
+    private static final WriteJournal instance = new WriteJournal(
+            Paths.get(System.getenv("WriteJournalFile") != null ? System.getenv("WriteJournalFile") : "writes.journal"),
+            Util.envInt("WriteJournal", 0) != 0,
+            Util.envInt("WriteJournalApplyMillis", 200));
+
+    private static final int MAGIC = 0x574A4E32; // "WJN2"
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + 2 * Long.BYTES;
+    private static final int maxApplyAttempts = Util.envInt("WriteJournalApplyAttempts", 5);
+    private static final long rotateBytes = 1 << 20;
+    private static final byte AVAILABILITY = 1;
+    private static final byte DOSES = 2;
+
+    private static final String readOffset =
+            "SELECT Generation, AppliedOffset FROM WriteJournalOffsets WITH (UPDLOCK, HOLDLOCK) WHERE Journal = ?";
+    private static final String writeOffset =
+            "UPDATE WriteJournalOffsets SET Generation = ?, AppliedOffset = ? WHERE Journal = ?; " +
+            "IF @@ROWCOUNT = 0 INSERT INTO WriteJournalOffsets (Journal, Generation, AppliedOffset) VALUES (?, ?, ?);";
+    private static final String addAvailability = "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)";
+
+    private final Path file;
+    private final boolean enabled;
+    private final long applyMillis;
+
+    // guards the file, appends and rotation
+    private final Object lock = new Object();
+    // one apply at a time
+    private final Object applyLock = new Object();
+    private FileChannel channel;
+    // names this journal's row in WriteJournalOffsets
+    private UUID uuid;
+    private String id;
+    private long generation;
+    private long end;
+    // records before this offset are no longer counted in pendingDoses
+    private long accounted;
+    // dose changes journaled but not yet applied to the database
+    private final ConcurrentHashMap<String, AtomicInteger> pendingDoses = new ConcurrentHashMap<>();
+    private ScheduledExecutorService applier;
+    private volatile boolean shutdown = false;
+    // the offset applies keep failing from and how many times in a row they did, guarded by applyLock
+    private long failedOffset = -1;
+    private int failedApplies = 0;
+    // whether the last background apply failed, only touched by the applier thread
+    private boolean failing = false;
+
+    public WriteJournal(Path file, boolean enabled, long applyMillis) {
+        this.file = file;
+        this.enabled = enabled;
+        this.applyMillis = applyMillis;
+    }
+
+    public static WriteJournal getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Open the journal and apply whatever a previous run left unapplied, returns how many records were applied
+    public int recover() throws SQLException {
+        open();
+        return flush();
+    }
+
+    // Journal the caregiver's availability on the date, it reaches the database on the next apply
+    public void appendAvailability(Date d, String username) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream record = new DataOutputStream(bytes)) {
+            record.writeByte(AVAILABILITY);
+            record.writeInt((int) d.toLocalDate().toEpochDay());
+            record.writeUTF(username);
+        } catch (IOException e) {
+            throw new SQLException("Could not encode journal record", e);
+        }
+        append(bytes.toByteArray());
+    }
+
+    // Journal a change in doses, it reaches the database on the next apply
+    public void appendDoses(String vaccine, int delta) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream record = new DataOutputStream(bytes)) {
+            record.writeByte(DOSES);
+            record.writeUTF(vaccine);
+            record.writeInt(delta);
+        } catch (IOException e) {
+            throw new SQLException("Could not encode journal record", e);
+        }
+        synchronized (lock) {
+            append(bytes.toByteArray());
+            pendingDoses.computeIfAbsent(vaccine, k -> new AtomicInteger()).addAndGet(delta);
+        }
+    }
+
+    // Doses journaled but not yet applied to the database
+    public int getPendingDoses(String vaccine) {
+        AtomicInteger delta = pendingDoses.get(vaccine);
+        return delta == null ? 0 : delta.get();
+    }
+
+    public boolean hasPending() {
+        synchronized (lock) {
+            return channel != null && end > accounted;
+        }
+    }
+
+    // Apply every journaled record to the database in one transaction, returns how many were applied
+    public int flush() throws SQLException {
+        synchronized (applyLock) {
+            long generation;
+            long end;
+            synchronized (lock) {
+                if (channel == null) {
+                    return 0;
+                }
+                generation = this.generation;
+                end = this.end;
+            }
+
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createUnboundConnection();
+            List<Record> records;
+            try {
+                con.setAutoCommit(false);
+                long start = -1;
+                try {
+                    start = appliedOffset(con, generation);
+                    records = read(start, end);
+                    if (!records.isEmpty()) {
+                        if (start == failedOffset && failedApplies >= maxApplyAttempts) {
+                            // the same records keep failing, find the ones that do and set them aside
+                            records = applyEach(con, generation, records);
+                        } else {
+                            apply(con, records);
+                            writeOffset(con, generation, end);
+                        }
+                    }
+                    con.commit();
+                    failedOffset = -1;
+                    failedApplies = 0;
+                } catch (SQLException e) {
+                    con.rollback();
+                    if (start >= 0) {
+                        failedApplies = start == failedOffset ? failedApplies + 1 : 1;
+                        failedOffset = start;
+                    }
+                    throw e;
+                } finally {
+                    con.setAutoCommit(true);
+                }
+            } finally {
+                cm.closeConnection();
+            }
+
+            // the database now has everything up to end, including records a previous run applied
+            for (Record record : read(accounted, end)) {
+                if (record.type == DOSES) {
+                    pendingDoses.computeIfAbsent(record.name, k -> new AtomicInteger()).addAndGet(-record.delta);
+                }
+            }
+            AvailabilityCache cache = AvailabilityCache.getInstance();
+            for (Record record : records) {
+                if (record.type == AVAILABILITY) {
+                    cache.addCaregiver(record.date, record.name);
+                }
+            }
+            synchronized (lock) {
+                accounted = end;
+                if (this.end == end && end >= rotateBytes) {
+                    rotate();
+                }
+            }
+            return records.size();
+        }
+    }
+
+    // Stop the background apply and try once more to apply what is left, the rest waits for the next start
+    public void shutdown() {
+        if (shutdown || !enabled) {
+            return;
+        }
+        shutdown = true;
+        if (applier != null) {
+            applier.shutdown();
+            try {
+                applier.awaitTermination(applyMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.out.println("Could not apply the write journal, it is replayed on the next start");
+            e.printStackTrace();
+        }
+        synchronized (lock) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private void append(byte[] payload) throws SQLException {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new IllegalStateException("Write journal has been shut down");
+            }
+            open();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + payload.length);
+            record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            record.flip();
+            try {
+                long position = end;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+                // acknowledged only once it survives a crash
+                channel.force(false);
+                end = position;
+            } catch (IOException e) {
+                throw new SQLException("Could not write to the journal", e);
+            }
+        }
+    }
+
+    private void open() throws SQLException {
+        synchronized (lock) {
+            if (channel != null) {
+                return;
+            }
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                // a new file, or one whose header a crash cut short before any record was written
+                if (channel.size() < HEADER_BYTES) {
+                    writeHeader(channel, 1, UUID.randomUUID());
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a write journal");
+                }
+                generation = header.getLong();
+                uuid = new UUID(header.getLong(), header.getLong());
+                id = uuid.toString();
+                accounted = HEADER_BYTES;
+                end = HEADER_BYTES;
+                // count every record as pending until the first apply learns how far the database got,
+                // and drop a record torn by a crash in the middle of an append
+                for (Record record : read(HEADER_BYTES, channel.size())) {
+                    if (record.type == DOSES) {
+                        pendingDoses.computeIfAbsent(record.name, k -> new AtomicInteger()).addAndGet(record.delta);
+                    }
+                    end = record.end;
+                }
+                channel.truncate(end);
+            } catch (IOException e) {
+                channel = null;
+                throw new SQLException("Could not open the journal " + file, e);
+            }
+            applier = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "write-journal-applier");
+                t.setDaemon(true);
+                return t;
+            });
+            applier.scheduleWithFixedDelay(this::flushQuietly, applyMillis, applyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Where this generation's apply starts: the stored offset, or the first record if it is of an older file
+    private long appliedOffset(Connection con, long generation) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(readOffset)) {
+            statement.setString(1, id);
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next() || resultSet.getLong("Generation") < generation) {
+                return HEADER_BYTES;
+            }
+            if (resultSet.getLong("Generation") > generation) {
+                throw new SQLException("The database has applied a newer generation of " + file);
+            }
+            return resultSet.getLong("AppliedOffset");
+        }
+    }
+
+    private void writeOffset(Connection con, long generation, long offset) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(writeOffset)) {
+            statement.setLong(1, generation);
+            statement.setLong(2, offset);
+            statement.setString(3, id);
+            statement.setString(4, id);
+            statement.setLong(5, generation);
+            statement.setLong(6, offset);
+            statement.executeUpdate();
+        }
+    }
+
+    // Apply the records one transaction each and quarantine those that still fail, returns the applied ones
+    private List<Record> applyEach(Connection con, long generation, List<Record> records) throws SQLException {
+        List<Record> applied = new ArrayList<>();
+        for (Record record : records) {
+            try {
+                apply(con, Collections.singletonList(record));
+                writeOffset(con, generation, record.end);
+                con.commit();
+                applied.add(record);
+            } catch (SQLException e) {
+                con.rollback();
+                // a lost connection says nothing about the record, keep it for the next apply
+                if (!con.isValid(5)) {
+                    throw e;
+                }
+                quarantine(record, e);
+                writeOffset(con, generation, record.end);
+                con.commit();
+            }
+        }
+        return applied;
+    }
+
+    // Set the record aside in the quarantine file, with why the database rejected it
+    private void quarantine(Record record, SQLException cause) throws SQLException {
+        Path quarantine = file.resolveSibling(file.getFileName() + ".quarantine");
+        String line = record + "\t" + cause.getMessage() + System.lineSeparator();
+        try (FileChannel out = FileChannel.open(quarantine, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        } catch (IOException e) {
+            throw new SQLException("Could not quarantine the journal record " + record, e);
+        }
+        System.out.println("Quarantined the journal record " + record + " after " + maxApplyAttempts
+                + " failed applies, see " + quarantine);
+        cause.printStackTrace();
+    }
+
+    private void apply(Connection con, List<Record> records) throws SQLException {
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+            int batched = 0;
+            for (Record record : records) {
+                if (record.type == AVAILABILITY) {
+                    statement.setDate(1, record.date);
+                    statement.setString(2, record.name);
+                    statement.setDate(3, record.date);
+                    statement.setString(4, record.name);
+                    statement.addBatch();
+                    batched++;
+                } else {
+                    deltas.merge(record.name, record.delta, Integer::sum);
+                }
+            }
+            if (batched > 0) {
+                statement.executeBatch();
+            }
+        }
+        if (!deltas.isEmpty()) {
+            try (PreparedStatement statement = con.prepareStatement(DoseShards.addToShard)) {
+                for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                    DoseShards.addDelta(statement, delta.getKey(), delta.getValue());
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+
+    // The intact records between the offsets, stopping at a torn one
+    private List<Record> read(long from, long to) throws SQLException {
+        List<Record> records = new ArrayList<>();
+        try {
+            ByteBuffer lengths = ByteBuffer.allocate(2 * Integer.BYTES);
+            long position = from;
+            while (position + lengths.capacity() <= to) {
+                lengths.clear();
+                channel.read(lengths, position);
+                lengths.flip();
+                int length = lengths.getInt();
+                int checksum = lengths.getInt();
+                long next = position + lengths.capacity() + length;
+                if (length <= 0 || next > to) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                while (payload.hasRemaining()) {
+                    if (channel.read(payload, position + lengths.capacity() + payload.position()) < 0) {
+                        break;
+                    }
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if (payload.hasRemaining() || (int) crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload.array()));
+                byte type = record.readByte();
+                if (type == AVAILABILITY) {
+                    Date d = Date.valueOf(LocalDate.ofEpochDay(record.readInt()));
+                    records.add(new Record(type, d, record.readUTF(), 0, next));
+                } else {
+                    String vaccine = record.readUTF();
+                    records.add(new Record(type, null, vaccine, record.readInt(), next));
+                }
+                position = next;
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not read the journal " + file, e);
+        }
+        return records;
+    }
+
+    // Replace the fully applied file with an empty one of the next generation
+    private void rotate() {
+        Path next = file.resolveSibling(file.getFileName() + ".next");
+        try {
+            try (FileChannel fresh = FileChannel.open(next, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeHeader(fresh, generation + 1, uuid);
+            }
+            channel.close();
+            Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            generation++;
+            end = HEADER_BYTES;
+            accounted = HEADER_BYTES;
+        } catch (IOException e) {
+            // keep appending to the old file, it is only bigger than it needs to be
+            e.printStackTrace();
+            try {
+                if (!channel.isOpen()) {
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            } catch (IOException reopen) {
+                reopen.printStackTrace();
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, long generation, UUID uuid) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putLong(generation).putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits());
+        header.flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+            if (failing) {
+                failing = false;
+                System.out.println("The write journal is reaching the database again");
+            }
+        } catch (SQLException e) {
+            // the records stay in the journal, the next run tries again
+            if (!failing) {
+                failing = true;
+                System.out.println("Could not apply the write journal, retrying every " + applyMillis + " ms");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final Date date;
+        // the caregiver of an availability, the vaccine of a dose change
+        private final String name;
+        private final int delta;
+        // offset just past the record
+        private final long end;
+
+        private Record(byte type, Date date, String name, int delta, long end) {
+            this.type = type;
+            this.date = date;
+            this.name = name;
+            this.delta = delta;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return type == AVAILABILITY ? "availability " + date + " " + name : "doses " + name + " " + delta;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package scheduler.tools;
+
+import scheduler.db.ConnectionManager;
+import scheduler.service.CredentialService;
+import scheduler.service.DoseShards;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows the load and stress tools create for a run, all named with one prefix.
+ *
+ * Accounts, vaccines and availabilities are collected with the add methods and written by write() in
+ * one transaction, every account with the same password hashed once. cleanUp() deletes every row
+ * whose key starts with the prefix, in foreign key order, before and after a run.
+ */
+public class Fixture {
+
+    // in foreign key order; an appointment or waitlist entry is the fixture's if any name in it is
+    private static final String cleanUp =
+            "DECLARE @pattern varchar(255) = ?; " +
+            "DELETE FROM Appointments WHERE pUsername LIKE @pattern ESCAPE '\\' " +
+            "OR cUsername LIKE @pattern ESCAPE '\\' OR vName LIKE @pattern ESCAPE '\\'; " +
+            "DELETE FROM Waitlist WHERE pUsername LIKE @pattern ESCAPE '\\' OR vName LIKE @pattern ESCAPE '\\'; " +
+            "DELETE FROM Availabilities WHERE Username LIKE @pattern ESCAPE '\\'; " +
+            "DELETE FROM VaccineShards WHERE Name LIKE @pattern ESCAPE '\\'; " +
+            "DELETE FROM Vaccines WHERE Name LIKE @pattern ESCAPE '\\'; " +
+            "DELETE FROM Caregivers WHERE Username LIKE @pattern ESCAPE '\\'; " +
+            "DELETE FROM Patients WHERE Username LIKE @pattern ESCAPE '\\';";
+
+    private final String prefix;
+    private final List<String> patients = new ArrayList<>();
+    private final List<String> caregivers = new ArrayList<>();
+    private final Map<String, Integer> vaccines = new LinkedHashMap<>();
+    private final Map<String, Integer> stock = new LinkedHashMap<>();
+    private final List<Date> availabilityDates = new ArrayList<>();
+    private final List<String> availabilityCaregivers = new ArrayList<>();
+
+    public Fixture(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Fixture addPatient(String username) {
+        patients.add(owned(username));
+        return this;
+    }
+
+    public Fixture addCaregiver(String username) {
+        caregivers.add(owned(username));
+        return this;
+    }
+
+    // A new vaccine with its doses spread over the shards
+    public Fixture addVaccine(String name, int doses) {
+        vaccines.put(owned(name), doses);
+        return this;
+    }
+
+    // Replace whatever stock an existing vaccine has left
+    public Fixture setStock(String name, int doses) {
+        stock.put(owned(name), doses);
+        return this;
+    }
+
+    public Fixture addAvailability(Date date, String caregiver) {
+        availabilityDates.add(date);
+        availabilityCaregivers.add(owned(caregiver));
+        return this;
+    }
+
+    // Insert everything added since the last write in one transaction
+    public void write(String password) throws SQLException {
+        CredentialService credentials = CredentialService.getInstance();
+        byte[] salt = credentials.newSalt();
+        // hashing is deliberately slow, skip it when there are no accounts to write
+        byte[] hash = patients.isEmpty() && caregivers.isEmpty() ? null : credentials.hash(password, salt);
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            insertUsers(con, "Patients", patients, salt, hash, credentials.getIterations());
+            insertUsers(con, "Caregivers", caregivers, salt, hash, credentials.getIterations());
+
+            try (PreparedStatement vaccine = con.prepareStatement("INSERT INTO Vaccines (Name, Doses) VALUES (?, 0)");
+                 PreparedStatement empty = con.prepareStatement("DELETE FROM VaccineShards WHERE Name = ?");
+                 PreparedStatement shards = con.prepareStatement(DoseShards.addToShard)) {
+                for (Map.Entry<String, Integer> entry : vaccines.entrySet()) {
+                    vaccine.setString(1, entry.getKey());
+                    vaccine.addBatch();
+                    DoseShards.addStock(shards, entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, Integer> entry : stock.entrySet()) {
+                    empty.setString(1, entry.getKey());
+                    empty.addBatch();
+                    DoseShards.addStock(shards, entry.getKey(), entry.getValue());
+                }
+                // the vaccines before their shards, and the old shards out of the way of the new
+                vaccine.executeBatch();
+                empty.executeBatch();
+                shards.executeBatch();
+            }
+
+            try (PreparedStatement availability = con.prepareStatement("INSERT INTO Availabilities VALUES (?, ?)")) {
+                for (int i = 0; i < availabilityDates.size(); i++) {
+                    availability.setDate(1, availabilityDates.get(i));
+                    availability.setString(2, availabilityCaregivers.get(i));
+                    availability.addBatch();
+                }
+                availability.executeBatch();
+            }
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+        patients.clear();
+        caregivers.clear();
+        vaccines.clear();
+        stock.clear();
+        availabilityDates.clear();
+        availabilityCaregivers.clear();
+    }
+
+    // Delete every row the fixture, or an earlier run of it, created
+    public void cleanUp() throws SQLException {
+        // the prefix itself may hold LIKE wildcards, such as the _ in "lt_"
+        String pattern = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")
+                .replace("[", "\\[") + "%";
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(cleanUp)) {
+            statement.setString(1, pattern);
+            statement.execute();
+            // read past every delete's count so an error from a later one is not lost
+            while (statement.getMoreResults() || statement.getUpdateCount() != -1) {
+                // nothing to read
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void insertUsers(Connection con, String table, List<String> usernames, byte[] salt, byte[] hash,
+                                    int iterations) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(
+                "INSERT INTO " + table + " (Username, Salt, Hash, Iterations) VALUES (?, ?, ?, ?)")) {
+            statement.setBytes(2, salt);
+            statement.setBytes(3, hash);
+            statement.setInt(4, iterations);
+            for (String username : usernames) {
+                statement.setString(1, username);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // cleanUp() only finds rows under the prefix
+    private String owned(String name) {
+        if (!name.startsWith(prefix)) {
+            throw new IllegalArgumentException(name + " does not start with " + prefix);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,143 @@
+package scheduler.tools;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.MigrationRunner;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Before/after timing of the appointment indexes added by migration V1, on a synthetic dataset.
+ *
+ * Fills a scratch copy of the Appointments table with rows spread over many patients, caregivers
+ * and dates, times the appointment lookups show_appointments and cancel_day run, applies the V1
+ * migration script to the scratch table and times the same lookups again.
+ *
+ * Usage: IndexBenchmark [rows] [queriesPerLookup]
+ * The scratch table is called IndexBench_Appointments and is dropped at the end.
+ */
+public class IndexBenchmark {
+
+    private static final String table = "IndexBench_Appointments";
+    private static final int caregivers = 2000;
+    private static final int days = 730;
+    private static final LocalDate firstDay = LocalDate.of(2022, 1, 1);
+
+    private static final String[] lookups = new String[] {"patient", "caregiver", "caregiver day"};
+    private static final String[] queries = new String[] {
+            "SELECT apID, vName, Time, cUsername FROM " + table + " WHERE pUsername = ? ORDER BY apID",
+            "SELECT apID, vName, Time, pUsername FROM " + table + " WHERE cUsername = ? ORDER BY apID",
+            "SELECT apID, pUsername, vName FROM " + table + " WHERE Time = ? AND cUsername = ?"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int queriesPerLookup = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int patients = Math.max(1, rows / 4);
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            drop(con);
+            System.out.println("Loading " + rows + " synthetic appointments...");
+            load(con, rows, patients);
+
+            double[][] before = timeAll(con, patients, queriesPerLookup);
+            long indexStart = System.nanoTime();
+            try (Statement statement = con.createStatement()) {
+                for (String batch : MigrationRunner.load("V1__appointment_indexes.sql")) {
+                    // index names are per table, only the table name needs to change
+                    statement.execute(batch.replaceAll("\\bAppointments\\b", table));
+                }
+            }
+            double indexMillis = (System.nanoTime() - indexStart) / 1e6;
+            double[][] after = timeAll(con, patients, queriesPerLookup);
+
+            System.out.println(String.format("Indexes built in %.0f ms", indexMillis));
+            System.out.println(String.format("%-14s %12s %12s %12s %12s %9s",
+                    "lookup", "before avg", "before p99", "after avg", "after p99", "speedup"));
+            for (int i = 0; i < lookups.length; i++) {
+                System.out.println(String.format("%-14s %10.2fms %10.2fms %10.2fms %10.2fms %8.1fx",
+                        lookups[i], before[i][0], before[i][1], after[i][0], after[i][1], before[i][0] / after[i][0]));
+            }
+        } finally {
+            drop(con);
+            cm.closeConnection();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    private static void load(Connection con, int rows, int patients) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE " + table + " (" +
+                    "apID int PRIMARY KEY IDENTITY(1,1), cUsername varchar(255), pUsername varchar(255), " +
+                    "vName varchar(255), Time date)");
+        }
+        // one set-based insert, numbering rows off a cross join of the system catalog
+        String fill = "INSERT INTO " + table + " (cUsername, pUsername, vName, Time) " +
+                "SELECT 'c' + CAST(n % ? AS varchar(10)), 'p' + CAST(n % ? AS varchar(10)), " +
+                "'v' + CAST(n % 10 AS varchar(10)), DATEADD(day, n % ?, ?) " +
+                "FROM (SELECT TOP (?) ROW_NUMBER() OVER (ORDER BY (SELECT NULL)) AS n " +
+                "      FROM sys.all_objects a CROSS JOIN sys.all_objects b CROSS JOIN sys.all_objects c) numbers";
+        try (PreparedStatement statement = con.prepareStatement(fill)) {
+            statement.setInt(1, caregivers);
+            statement.setInt(2, patients);
+            statement.setInt(3, days);
+            statement.setDate(4, Date.valueOf(firstDay));
+            statement.setInt(5, rows);
+            statement.executeUpdate();
+        }
+    }
+
+    // avg and p99 milliseconds per lookup
+    private static double[][] timeAll(Connection con, int patients, int queriesPerLookup) throws SQLException {
+        double[][] results = new double[queries.length][];
+        for (int i = 0; i < queries.length; i++) {
+            results[i] = time(con, i, patients, queriesPerLookup);
+        }
+        return results;
+    }
+
+    private static double[] time(Connection con, int query, int patients, int queriesPerLookup) throws SQLException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] millis = new double[queriesPerLookup];
+        try (PreparedStatement statement = con.prepareStatement(queries[query])) {
+            for (int i = 0; i < queriesPerLookup; i++) {
+                if (query == 0) {
+                    statement.setString(1, "p" + random.nextInt(patients));
+                } else if (query == 1) {
+                    statement.setString(1, "c" + random.nextInt(caregivers));
+                } else {
+                    statement.setDate(1, Date.valueOf(firstDay.plusDays(random.nextInt(days))));
+                    statement.setString(2, "c" + random.nextInt(caregivers));
+                }
+                long start = System.nanoTime();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        // read every row, like show_appointments does
+                    }
+                }
+                millis[i] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        Arrays.sort(millis);
+        double total = 0;
+        for (double m : millis) {
+            total += m;
+        }
+        return new double[] {total / millis.length, millis[(int) Math.ceil(millis.length * 0.99) - 1]};
+    }
+
+    private static void drop(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("IF OBJECT_ID('" + table + "') IS NOT NULL DROP TABLE " + table);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package scheduler.tools;
+
+import scheduler.Scheduler;
+import scheduler.ScriptRunner;
+import scheduler.db.ConnectionManager;
+import scheduler.db.MigrationRunner;
+import scheduler.service.InventoryService;
+import scheduler.service.WaitlistMatcher;
+import scheduler.service.WriteJournal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Clinic-scale load test of whole Scheduler sessions against the configured database.
+ *
+ * Generates a population of patients, caregivers and vaccines, with caregivers free on most weekdays
+ * and fewer weekend days over the next weeks. Then many simulated users run a weighted mix of
+ * commands for a fixed time. Each user holds one patient and one caregiver session: patients
+ * reserve (mostly the next few days), search schedules and list their appointments, caregivers
+ * upload availability and add doses. The run reports throughput and p50/p95/p99 latency per command.
+ * It then checks that no caregiver was double-booked or booked while still listed as available,
+ * that no vaccine went negative, and that every vaccine's doses equal what it started with plus
+ * what was added minus what was booked.
+ *
+ * Usage: LoadTest [--users n] [--seconds n] [--scale n] [--mix reserve=40,search=25,show=15,upload=10,add_doses=10]
+ *                 [--create-schema]
+ * --scale is the number of caregivers; there are ten patients per caregiver.
+ * --create-schema loads create.sql first when the database has no tables yet, so the test can run
+ * against an empty local SQL Server; SQL Server has no embedded mode to start in-process.
+ * Set PoolMaxSize to at least the number of users, otherwise the run measures pool waits.
+ * All rows it creates are prefixed with "load_" and removed at the end.
+ */
+public class LoadTest {
+
+    private static final String prefix = "load_";
+    private static final String password = "LoadPass11!!";
+    private static final String[] vaccines = new String[] {prefix + "pfizer", prefix + "moderna", prefix + "novavax"};
+    private static final int initialDoses = 5000;
+    private static final int dosesPerAdd = 10;
+    private static final int days = 28;
+    private static final LocalDate firstDay = LocalDate.of(2997, 1, 1);
+    private static final String[] commands = new String[] {"reserve", "search", "show", "upload", "add_doses"};
+
+    public static void main(String[] args) throws Exception {
+        int users = 32;
+        int seconds = 60;
+        int scale = 200;
+        String mix = "reserve=40,search=25,show=15,upload=10,add_doses=10";
+        boolean createSchema = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--users")) {
+                users = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--scale")) {
+                scale = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--mix")) {
+                mix = args[++i];
+            } else if (args[i].equals("--create-schema")) {
+                createSchema = true;
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        int[] weights = parseMix(mix);
+        int caregivers = scale;
+        int patients = scale * 10;
+
+        ConnectionManager.warmUp();
+        Fixture fixture = new Fixture(prefix);
+        boolean ok;
+        try {
+            if (createSchema) {
+                createSchema();
+            }
+            fixture.cleanUp();
+            System.out.println("Generating " + patients + " patients, " + caregivers + " caregivers, "
+                    + vaccines.length + " vaccines...");
+            int availabilities = createPopulation(fixture, patients, caregivers);
+            System.out.println(availabilities + " availabilities over " + days + " days");
+
+            Stats[] stats = run(users, seconds, weights, patients, caregivers);
+            report(stats, seconds);
+
+            // dose changes may still be buffered in this process
+            InventoryService.getInstance().flush();
+            String violations = checkInvariants(stats[4].ok * dosesPerAdd);
+            ok = violations.isEmpty();
+            System.out.println(ok ? "All invariants held." : "Invariant violations: " + violations);
+        } finally {
+            WaitlistMatcher.getInstance().shutdown();
+            WriteJournal.getInstance().shutdown();
+            InventoryService.getInstance().shutdown();
+            fixture.cleanUp();
+            ConnectionManager.shutdown();
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[commands.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=");
+            int command = Arrays.asList(commands).indexOf(pair[0].trim());
+            if (pair.length != 2 || command < 0) {
+                throw new IllegalArgumentException("Mix entries look like reserve=40, not " + part);
+            }
+            weights[command] = Integer.parseInt(pair[1].trim());
+        }
+        return weights;
+    }
+
+    private static Stats[] run(int users, int seconds, int[] weights, int patients, int caregivers) throws Exception {
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+        int total = totalWeight;
+        ExecutorService executor = Executors.newFixedThreadPool(users);
+        CountDownLatch start = new CountDownLatch(1);
+        // set once every user has logged in, the countdown publishes it to them
+        long[] deadline = new long[1];
+        List<Future<Stats[]>> results = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            String patient = String.format("%sp%06d", prefix, u % patients);
+            String caregiver = String.format("%sc%05d", prefix, u % caregivers);
+            results.add(executor.submit(() -> {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+                Scheduler patientSession = new Scheduler(out);
+                Scheduler caregiverSession = new Scheduler(out);
+                patientSession.execute("login_patient " + patient + " " + password);
+                caregiverSession.execute("login_caregiver " + caregiver + " " + password);
+
+                Stats[] own = newStats();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                start.await();
+                while (System.nanoTime() < deadline[0]) {
+                    int command = pick(weights, random.nextInt(total));
+                    String line;
+                    Scheduler session = patientSession;
+                    if (command == 0) {
+                        line = "reserve " + soonDate(random) + " " + vaccines[random.nextInt(vaccines.length)];
+                    } else if (command == 1) {
+                        line = "search_caregiver_schedule " + soonDate(random);
+                    } else if (command == 2) {
+                        line = "show_appointments";
+                    } else if (command == 3) {
+                        line = "upload_availability " + firstDay.plusDays(random.nextInt(days));
+                        session = caregiverSession;
+                    } else {
+                        line = "add_doses " + vaccines[random.nextInt(vaccines.length)] + " " + dosesPerAdd;
+                        session = caregiverSession;
+                    }
+                    output.reset();
+                    long begin = System.nanoTime();
+                    boolean failed;
+                    try {
+                        session.execute(line);
+                        failed = ScriptRunner.failureOf(output.toString(StandardCharsets.UTF_8)) != null;
+                    } catch (RuntimeException e) {
+                        failed = true;
+                    }
+                    own[command].record(System.nanoTime() - begin, failed);
+                }
+                return own;
+            }));
+        }
+
+        System.out.println("Running " + users + " users for " + seconds + " seconds...");
+        deadline[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        Stats[] stats = newStats();
+        for (Future<Stats[]> result : results) {
+            Stats[] own = result.get();
+            for (int i = 0; i < commands.length; i++) {
+                stats[i].merge(own[i]);
+            }
+        }
+        executor.shutdown();
+        return stats;
+    }
+
+    private static int pick(int[] weights, int roll) {
+        for (int i = 0; i < weights.length; i++) {
+            roll -= weights[i];
+            if (roll < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    // Patients mostly want one of the next few days
+    private static LocalDate soonDate(ThreadLocalRandom random) {
+        int day = (int) Math.min(days - 1, -Math.log(1 - random.nextDouble()) * 4);
+        return firstDay.plusDays(day);
+    }
+
+    private static void report(Stats[] stats, int seconds) {
+        System.out.println(String.format("%-10s %9s %8s %9s %10s %10s %10s %10s",
+                "command", "ops", "failed", "ops/sec", "p50(ms)", "p95(ms)", "p99(ms)", "max(ms)"));
+        long ops = 0;
+        for (int i = 0; i < commands.length; i++) {
+            Stats s = stats[i];
+            s.sort();
+            ops += s.count;
+            System.out.println(String.format("%-10s %9d %8d %9.1f %10.2f %10.2f %10.2f %10.2f",
+                    commands[i], s.count, s.failed, (double) s.count / seconds,
+                    s.percentile(50), s.percentile(95), s.percentile(99), s.percentile(100)));
+        }
+        System.out.println(String.format("Total %.1f commands/sec", (double) ops / seconds));
+    }
+
+    private static String checkInvariants(long dosesAdded) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        StringBuilder violations = new StringBuilder();
+        try {
+            if (count(con, "SELECT COUNT(*) FROM (SELECT cUsername, Time FROM Appointments WHERE cUsername LIKE ? "
+                    + "GROUP BY cUsername, Time HAVING COUNT(*) > 1) AS dup") > 0) {
+                violations.append("double-booked caregivers; ");
+            }
+            if (count(con, "SELECT COUNT(*) FROM Appointments ap JOIN Availabilities a "
+                    + "ON a.Time = ap.Time AND a.Username = ap.cUsername WHERE ap.cUsername LIKE ?") > 0) {
+                violations.append("booked caregivers still listed as available; ");
+            }
+            if (count(con, "SELECT COUNT(*) FROM (SELECT Name FROM VaccineShards WHERE Name LIKE ? "
+                    + "GROUP BY Name HAVING SUM(Doses) < 0) AS negative") > 0) {
+                violations.append("negative doses; ");
+            }
+            long booked = count(con, "SELECT COUNT(*) FROM Appointments WHERE vName LIKE ?");
+            long remaining = count(con, "SELECT SUM(Doses) FROM VaccineShards WHERE Name LIKE ?");
+            long expected = (long) initialDoses * vaccines.length + dosesAdded - booked;
+            if (remaining != expected) {
+                violations.append("expected ").append(expected).append(" doses left, found ").append(remaining)
+                        .append("; ");
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return violations.toString();
+    }
+
+    private static long count(Connection con, String sql) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.setString(1, prefix + "%");
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    // Load create.sql into a database that has none of its tables yet, then migrate it
+    private static void createSchema() throws SQLException, IOException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (Statement statement = con.createStatement()) {
+            ResultSet resultSet = statement.executeQuery("SELECT OBJECT_ID('Patients')");
+            resultSet.next();
+            if (resultSet.getObject(1) == null) {
+                try (InputStream in = LoadTest.class.getResourceAsStream("/resources/create.sql")) {
+                    if (in == null) {
+                        throw new IOException("create.sql is missing from the classpath");
+                    }
+                    statement.execute(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                System.out.println("Created the schema from create.sql");
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        MigrationRunner.migrate();
+    }
+
+    private static int createPopulation(Fixture fixture, int patients, int caregivers) throws SQLException {
+        for (int i = 0; i < patients; i++) {
+            fixture.addPatient(String.format("%sp%06d", prefix, i));
+        }
+        for (String name : vaccines) {
+            fixture.addVaccine(name, initialDoses);
+        }
+        // most caregivers work most weekdays and a few weekend days
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int availabilities = 0;
+        for (int i = 0; i < caregivers; i++) {
+            String caregiver = String.format("%sc%05d", prefix, i);
+            fixture.addCaregiver(caregiver);
+            for (int day = 0; day < days; day++) {
+                LocalDate date = firstDay.plusDays(day);
+                boolean weekend = date.getDayOfWeek() == DayOfWeek.SATURDAY
+                        || date.getDayOfWeek() == DayOfWeek.SUNDAY;
+                if (random.nextDouble() < (weekend ? 0.2 : 0.7)) {
+                    fixture.addAvailability(Date.valueOf(date), caregiver);
+                    availabilities++;
+                }
+            }
+        }
+        fixture.write(password);
+        return availabilities;
+    }
+
+    private static Stats[] newStats() {
+        Stats[] stats = new Stats[commands.length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+        return stats;
+    }
+
+    // Latencies of one command, kept whole since a run is minutes long at most
+    private static class Stats {
+        private long[] nanos = new long[1024];
+        private int count = 0;
+        private int failed = 0;
+        private int ok = 0;
+
+        private void record(long elapsed, boolean failure) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsed;
+            if (failure) {
+                failed++;
+            } else {
+                ok++;
+            }
+        }
+
+        private void merge(Stats other) {
+            if (count + other.count > nanos.length) {
+                nanos = Arrays.copyOf(nanos, count + other.count);
+            }
+            System.arraycopy(other.nanos, 0, nanos, count, other.count);
+            count += other.count;
+            failed += other.failed;
+            ok += other.ok;
+        }
+
+        private void sort() {
+            Arrays.sort(nanos, 0, count);
+        }
+
+        private double percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(count * percentile / 100) - 1;
+            return nanos[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package scheduler.tools;
+
+import scheduler.db.ConnectionManager;
+import scheduler.service.ReservationEngine;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded stress run of {@link ReservationEngine} against the configured database.
+ *
+ * For 1, 2, 4, ... threads it publishes a fresh date with a set of caregivers and slightly fewer
+ * doses, lets every thread book until nothing is left, then checks that no caregiver was booked
+ * twice, that doses never went negative and that exactly min(caregivers, doses) appointments exist.
+ *
+ * Usage: ReservationStress [maxThreads] [caregiversPerRound]
+ * Point ConnectionUrl at a local SQL Server and set PoolMaxSize to at least maxThreads,
+ * otherwise the larger rounds measure pool waits rather than the database.
+ * All rows it creates are prefixed with "stress_" and removed at the end.
+ */
+public class ReservationStress {
+
+    private static final String prefix = "stress_";
+    private static final String vaccine = prefix + "vaccine";
+    private static final String password = "StressPass11!!";
+    private static final int patients = 32;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int caregivers = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int doses = caregivers - caregivers / 10;
+
+        ConnectionManager.warmUp();
+        ReservationEngine engine = new ReservationEngine();
+        Fixture fixture = new Fixture(prefix);
+        boolean ok = true;
+        try {
+            fixture.cleanUp();
+            createUsers(fixture, caregivers);
+            System.out.println("threads  booked  failed  reservations/sec  invariants");
+            LocalDate date = LocalDate.of(2999, 1, 1);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                Date d = Date.valueOf(date);
+                publish(fixture, d, caregivers, doses);
+                ok &= round(engine, d, threads, caregivers, doses);
+                date = date.plusDays(1);
+            }
+        } finally {
+            fixture.cleanUp();
+            ConnectionManager.shutdown();
+        }
+        System.out.println(ok ? "All invariants held." : "Invariant violations found!");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean round(ReservationEngine engine, Date d, int threads, int caregivers, int doses)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<int[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String patient = prefix + "patient" + (t % patients);
+            results.add(executor.submit(() -> {
+                int booked = 0;
+                int failed = 0;
+                start.await();
+                while (true) {
+                    try {
+                        if (!engine.reserve(d, vaccine, patient).isBooked()) {
+                            return new int[] {booked, failed};
+                        }
+                        booked++;
+                    } catch (SQLException e) {
+                        failed++;
+                    }
+                }
+            }));
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        int booked = 0;
+        int failed = 0;
+        for (Future<int[]> result : results) {
+            int[] counts = result.get();
+            booked += counts[0];
+            failed += counts[1];
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        executor.shutdown();
+
+        String violations = checkInvariants(d, Math.min(caregivers, doses), booked);
+        System.out.printf("%7d  %6d  %6d  %16.1f  %s%n", threads, booked, failed, booked / seconds,
+                violations.isEmpty() ? "ok" : violations);
+        return violations.isEmpty();
+    }
+
+    private static String checkInvariants(Date d, int expected, int booked) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        StringBuilder violations = new StringBuilder();
+        try {
+            try (PreparedStatement doubleBooked = con.prepareStatement(
+                    "SELECT COUNT(*) FROM (SELECT cUsername FROM Appointments WHERE Time = ? " +
+                    "GROUP BY cUsername HAVING COUNT(*) > 1) AS dup")) {
+                doubleBooked.setDate(1, d);
+                if (count(doubleBooked) > 0) {
+                    violations.append("double-booked caregivers; ");
+                }
+            }
+
+            try (PreparedStatement stored = con.prepareStatement("SELECT COUNT(*) FROM Appointments WHERE Time = ?")) {
+                stored.setDate(1, d);
+                int appointments = count(stored);
+                if (appointments != expected || appointments != booked) {
+                    violations.append("expected ").append(expected).append(" appointments, found ")
+                            .append(appointments).append(" (reported ").append(booked).append("); ");
+                }
+            }
+
+            try (PreparedStatement remaining = con.prepareStatement(
+                    "SELECT COUNT(*) FROM VaccineShards WHERE Name = ? AND Doses < 0")) {
+                remaining.setString(1, vaccine);
+                if (count(remaining) > 0) {
+                    violations.append("negative doses; ");
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return violations.toString();
+    }
+
+    private static int count(PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private static void createUsers(Fixture fixture, int caregivers) throws SQLException {
+        for (int i = 0; i < caregivers; i++) {
+            fixture.addCaregiver(caregiver(i));
+        }
+        for (int i = 0; i < patients; i++) {
+            fixture.addPatient(prefix + "patient" + i);
+        }
+        fixture.addVaccine(vaccine, 0).write(password);
+    }
+
+    // A fresh date for every caregiver, with the vaccine's stock replaced by the given doses
+    private static void publish(Fixture fixture, Date d, int caregivers, int doses) throws SQLException {
+        for (int i = 0; i < caregivers; i++) {
+            fixture.addAvailability(d, caregiver(i));
+        }
+        fixture.setStock(vaccine, doses).write(password);
+    }
+
+    private static String caregiver(int i) {
+        return String.format("%scaregiver%05d", prefix, i);
+    }
+}
@@ -5,37 +5,108 @@ import javax.crypto.spec.PBEKeySpec;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
+import java.sql.Date;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 public class Util {
 
     // constants for handling password
-    private static final int HASH_STRENGTH = 10;
+    public static final int HASH_STRENGTH = 10;
     private static final int KEY_LENGTH = 16;
 
+    // both are expensive to create and not thread-safe to share, so every thread keeps its own
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<SecretKeyFactory> factory = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException();
+        }
+    });
+
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
-        random.nextBytes(salt);
+        random.get().nextBytes(salt);
         return salt;
     }
 
     public static byte[] generateHash(String password, byte[] salt) {
+        return generateHash(password, salt, HASH_STRENGTH);
+    }
+
+    public static byte[] generateHash(String password, byte[] salt, int iterations) {
         // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
 
         // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            return factory.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
             throw new IllegalStateException();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Read an integer setting from the environment, falling back to the default when unset or invalid
+    public static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    // Parse a comma separated list of weekdays such as "mon,wed,fri"
+    public static Set<DayOfWeek> parseWeekdays(String weekdays) {
+        Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+        for (String day : weekdays.split(",")) {
+            String prefix = day.trim().toUpperCase();
+            if (prefix.length() < 3) {
+                throw new IllegalArgumentException("Unknown weekday: " + day);
+            }
+            DayOfWeek match = null;
+            for (DayOfWeek candidate : DayOfWeek.values()) {
+                if (candidate.name().startsWith(prefix)) {
+                    match = candidate;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown weekday: " + day);
+            }
+            days.add(match);
+        }
+        return days;
+    }
+
+    // Every date from start to end (inclusive) that falls on one of the weekdays,
+    // keeping only every intervalWeeks-th week counted from the week of start
+    public static List<Date> expandDates(LocalDate start, LocalDate end, Set<DayOfWeek> weekdays, int intervalWeeks) {
+        if (end.isBefore(start) || intervalWeeks < 1) {
+            throw new IllegalArgumentException("Invalid date range!");
+        }
+        LocalDate firstWeek = start.minusDays(start.getDayOfWeek().getValue() - 1);
+        List<Date> dates = new ArrayList<>();
+        for (LocalDate d = start; !d.isAfter(end); d = d.plusDays(1)) {
+            long week = ChronoUnit.WEEKS.between(firstWeek, d);
+            if (weekdays.contains(d.getDayOfWeek()) && week % intervalWeeks == 0) {
+                dates.add(Date.valueOf(d));
+            }
         }
-        return hash;
+        return dates;
     }
 
     public static byte[] trim(byte[] bytes)